@@ -1,10 +1,54 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.application.Application;
@@ -41,8 +85,16 @@ import javafx.stage.Stage;
  refused to play another game.
  playagain consent  --- sent in response to a playagain query message when the recipient
  agrees to play another game.
+ playagain ready  --- sent by the side that received playagain consent once it
+ has reset its board for the new game.
  move row col   --- triggerred by a move to the specified cell
  chat message   --- triggerred by a click on the send message button.   
+ player new  --- optional, sent by a client to a headless server to get a
+ rated identity. The server answers player id token, or player denied
+ if this connection already got one.
+ player id token  --- optional, sent by a client to a headless server to
+ have its games rated under an id it got earlier. The server answers
+ player accepted, or player denied if the token does not match.
  */
 // Objects for reading and writing  the network connections.
 class NetComm
@@ -50,571 +102,4101 @@ class NetComm
 
     public BufferedReader reader;
     public PrintWriter writer;
-    public Socket sock;
-}
 
-// This class gatheres together various variables that 
-// keep track of the state of the game.
-class GameState
-{
+    // The connection the reader and writer are attached to.
+    public Transport transport;
 
-    public int numberOfCellsFilled = 0;
-    public boolean localPlayerTurn;
-    public boolean localPlayerGoesFirst;
-    public boolean gameOver;
-    public boolean[][] cellIsFilled = new boolean[3][3];
+    // Limits the chat traffic accepted from the remote side of this
+    // connection.
+    public ChatRateLimiter chatLimiter = new ChatRateLimiter();
 
-    // resets these variables at the beginning of new game.
-    public void reset()
+    // Longest protocol line that is read in full. Longer lines are cut,
+    // see BoundedLineReader.
+    public static final int MAX_LINE_LENGTH = 1024;
+
+    // Attaches the reader and writer to a connected transport.
+    public void connect(StreamTransport transport) throws IOException
     {
-        numberOfCellsFilled = 0;
-        localPlayerGoesFirst = !localPlayerGoesFirst;
-        localPlayerTurn = localPlayerGoesFirst;
-        gameOver = false;
+        connectOutput(transport);
+        reader = new BoundedLineReader(new InputStreamReader(
+                transport.getInputStream()), MAX_LINE_LENGTH);
+    }
 
-        for (int r = 0; r < 3; r++)
+    // Attaches only the writer, for transports whose input is read by
+    // someone else, such as a ChannelTransport.
+    public void connectOutput(Transport transport) throws IOException
+    {
+        this.transport = transport;
+        writer = new PrintWriter(transport.getOutputStream(), true);
+    }
+
+    // Index of the first character at or after from that is not
+    // whitespace, using the same rule as Scanner.
+    static int skipWhitespace(String line, int from)
+    {
+        while (from < line.length() && Character.isWhitespace(line.charAt(from)))
         {
-            for (int c = 0; c < 3; c++)
-            {
-                cellIsFilled[r][c] = false;
-            }
+            from++;
+        }
+        return from;
+    }
+
+    // Index of the first whitespace character at or after from.
+    static int skipToWhitespace(String line, int from)
+    {
+        while (from < line.length() && !Character.isWhitespace(line.charAt(from)))
+        {
+            from++;
         }
+        return from;
+    }
+
+    public void close() throws IOException
+    {
+        transport.close();
     }
 }
 
-// This interface gatheres together various variables needed by different
-// parts of the program while the game is in progress.
-interface GameSharedVariables
+// A connection between the local and the remote side that the local
+// side writes to. How its input is read depends on the kind of
+// connection: a StreamTransport hands out a stream for a reader thread,
+// and a ChannelTransport is read by the event loop of its room.
+interface Transport
 {
 
-    // Game menu stuff
+    OutputStream getOutputStream() throws IOException;
 
-    public Menu gameMenu = new Menu("Game");
-    public MenuItem playAgainMenuItem = new MenuItem("Play Again");
-    public MenuItem exitMenuItem = new MenuItem("Exit");
+    void close() throws IOException;
+}
 
-    final int row1 = 0;
-    final int row2 = 1;
-    final int row3 = 2;
-    final int col1 = 0;
-    final int col2 = 1;
-    final int col3 = 2;
-    // Other GUI components that need to be shared
-    public TextField statusBar = new TextField();
-    public GridPane tttBoard = new GridPane();
-    public TextArea chatHistoryTArea = new TextArea();
-    public TextField sendMessageTF = new TextField();
-    public TextField[][] cells = new TextField[3][3];
+// A two way byte stream between the local and the remote side.
+interface StreamTransport extends Transport
+{
 
-   // This shared netComm object will be used to read and write the 
-    // network connections. The reader and writer in this
-    // object need to be initialized after the sockets are 
-    // connected.  
-    public NetComm netComm = new NetComm();
+    InputStream getInputStream() throws IOException;
+}
 
-   // The localPlayerId and remotePlayerId string builders need 
-    // to be initialized to "X" for the server and "O" for the client.
-    public StringBuilder localPlayerId = new StringBuilder();
-    public StringBuilder remotePlayerId = new StringBuilder();
+// Transport over a connected TCP socket.
+class SocketTransport implements StreamTransport
+{
 
-    // These default methods just return the strings from the string builders.
+    private final Socket sock;
 
-    default String getLocalPlayerId()
+    public SocketTransport(Socket sock)
     {
-        return localPlayerId.toString();
+        this.sock = sock;
     }
 
-    default String getRemotePlayerId()
+    @Override
+    public InputStream getInputStream() throws IOException
     {
-        return remotePlayerId.toString();
+        return sock.getInputStream();
     }
 
-    public GameState gameState = new GameState();
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        return sock.getOutputStream();
+    }
 
-    // This methods is used to reset shared variables to restart the game.
-    default void reset()
+    @Override
+    public void close() throws IOException
     {
-        // reset cells
-        for (int r = 0; r < 3; r++)
+        sock.close();
+    }
+}
+
+// Transport over a non-blocking socket channel that is served by the
+// event loop of a RoomScheduler room instead of a thread of its own,
+// see RoomScheduler.attach.
+// The loop reads the channel and passes whole lines to a listener,
+// cutting lines longer than NetComm.MAX_LINE_LENGTH the same way
+// BoundedLineReader does. Writes go out right away when the socket has
+// room and are queued otherwise. Apart from close, everything has to
+// run on the loop that owns the room.
+class ChannelTransport implements Transport
+{
+
+    // A client that lets this much output pile up is disconnected.
+    public static final int MAX_PENDING_OUTPUT = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final ByteBuffer input = ByteBuffer.allocate(4096);
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private ByteBuffer output = ByteBuffer.allocate(1024);
+    private SelectionKey key;
+    private RoomScheduler.LineListener listener;
+
+    private final OutputStream out = new OutputStream()
+    {
+        @Override
+        public void write(int b) throws IOException
         {
-            for (int c = 0; c < 3; c++)
+            write(new byte[]
             {
-                cells[r][c].setText(" ");
-            }
+                (byte) b
+            }, 0, 1);
         }
 
-        // reset gameState
-        gameState.reset();
-        if (gameState.localPlayerGoesFirst)
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
         {
-            statusBar.setText("Make a move.");
-        } else
-        {
-            statusBar.setText("Wait for your turn.");
+            ChannelTransport.this.write(ByteBuffer.wrap(b, off, len));
         }
+    };
+
+    public ChannelTransport(SocketChannel channel) throws IOException
+    {
+        this.channel = channel;
+        channel.configureBlocking(false);
     }
 
-    // Check if the player has won
-    default boolean hasWon(String playerId)
+    @Override
+    public OutputStream getOutputStream()
     {
-        boolean winner = false;
+        return out;
+    }
 
-        for (int i = 0; i < 3; i++)
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    // Starts reading on the selector of the loop that now owns the room.
+    // A null listener keeps the current one.
+    void register(Selector selector, RoomScheduler.LineListener listener)
+    {
+        if (listener != null)
         {
-            winner = hasWonRow(i, playerId);
-            if (winner)
+            this.listener = listener;
+        }
+        int ops = output.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ;
+        try
+        {
+            try
             {
-                return winner;
-            }
-            winner = hasWonColumn(i, playerId);
-            if (winner)
+                key = channel.register(selector, ops, this);
+            } catch (CancelledKeyException ex)
             {
-                return winner;
+                // The room left this loop and came back before the
+                // selector dropped the old key, which it only does while
+                // selecting. This runs on the selector's own loop, so
+                // select here and try again.
+                selector.selectNow();
+                key = channel.register(selector, ops, this);
             }
-        }
-        if (hasWonRisingDiag(playerId))
+        } catch (ClosedChannelException ex)
         {
-            return true;
-        }
-        if (hasWonFallingDiag(playerId))
+            this.listener.onClosed();
+        } catch (IOException ex)
         {
-            return true;
+            fail();
         }
-
-        return winner;
     }
 
-    // Check if the player has won a row
+    // Stops reading before the room moves to another loop.
+    void unregister()
+    {
+        if (key != null)
+        {
+            key.cancel();
+            key = null;
+        }
+    }
 
-    default boolean hasWonRow(int r, String playerId)
+    // Called by the loop when the channel is ready.
+    void handleReady()
     {
-        if (cells[r][col1].getText().equals(playerId)
-                && cells[r][col2].getText().equals(playerId)
-                && cells[r][col3].getText().equals(playerId))
+        try
         {
-            return true;
-        } else
+            if (key.isWritable())
+            {
+                flush();
+            }
+            if (key != null && key.isValid() && key.isReadable())
+            {
+                read();
+            }
+        } catch (IOException ex)
         {
-            return false;
+            fail();
         }
     }
 
-    // Check if the player has won column.
-    default boolean hasWonColumn(int c, String playerId)
+    private void read() throws IOException
     {
-        if (cells[row1][c].getText().equals(playerId)
-                && cells[row2][c].getText().equals(playerId)
-                && cells[row3][c].getText().equals(playerId))
+        if (channel.read(input) < 0)
         {
-            return true;
-        } else
+            fail();
+            return;
+        }
+        input.flip();
+        while (input.hasRemaining() && channel.isOpen())
         {
-            return false;
+            byte b = input.get();
+            if (b == '\n')
+            {
+                String text = line.toString(Charset.defaultCharset());
+                line.reset();
+                listener.onLine(text);
+            } else if (b != '\r' && line.size() <= NetComm.MAX_LINE_LENGTH)
+            {
+                line.write(b);
+            }
         }
+        input.clear();
     }
 
-    // Check if the player has won the rising diagonal.
-    default boolean hasWonRisingDiag(String playerId)
+    private void write(ByteBuffer data) throws IOException
     {
-        if (cells[row3][col1].getText().equals(playerId)
-                && cells[row2][col2].getText().equals(playerId)
-                && cells[row1][col3].getText().equals(playerId))
+        if (output.position() == 0 && key != null)
         {
-            return true;
-        } else
+            channel.write(data);
+        }
+        if (!data.hasRemaining())
         {
-            return false;
+            return;
+        }
+
+        if (output.position() + data.remaining() > MAX_PENDING_OUTPUT)
+        {
+            fail();
+            throw new IOException("Client is not reading its output");
+        }
+        if (output.remaining() < data.remaining())
+        {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2,
+                    output.position() + data.remaining()));
+            output.flip();
+            larger.put(output);
+            output = larger;
+        }
+        output.put(data);
+        if (key != null)
+        {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
     }
 
-    // Check if the player has won the falling diagonal.
-    default boolean hasWonFallingDiag(String playerId)
+    private void flush() throws IOException
     {
-        if (cells[row1][col1].getText().equals(playerId)
-                && cells[row2][col2].getText().equals(playerId)
-                && cells[row3][col3].getText().equals(playerId))
+        output.flip();
+        channel.write(output);
+        output.compact();
+        if (output.position() == 0)
         {
-            return true;
-        } else
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void fail()
+    {
+        unregister();
+        try
         {
-            return false;
+            channel.close();
+        } catch (IOException ex)
+        {
+            Logger.getLogger(ChannelTransport.class.getName()).
+                    log(Level.WARNING, null, ex);
         }
+        listener.onClosed();
     }
 }
 
-// This class is the main JavaFX application. It builds the user interface
-// and attaches the event handlers.
-public class TicTacToe extends Application implements GameSharedVariables
+// Transport that connects two ends inside the same JVM through a pair
+// of in-memory ring buffers. Used to run both sides of the protocol in
+// one process, without the kernel in between. Call pair() to get two
+// connected ends.
+class LoopbackTransport implements StreamTransport
 {
 
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final RingBuffer incoming;
+    private final RingBuffer outgoing;
+
+    private LoopbackTransport(RingBuffer incoming, RingBuffer outgoing)
+    {
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+    }
+
+    public static LoopbackTransport[] pair()
+    {
+        return pair(DEFAULT_BUFFER_SIZE);
+    }
+
+    public static LoopbackTransport[] pair(int bufferSize)
+    {
+        RingBuffer aToB = new RingBuffer(bufferSize);
+        RingBuffer bToA = new RingBuffer(bufferSize);
+        return new LoopbackTransport[]
+        {
+            new LoopbackTransport(bToA, aToB), new LoopbackTransport(aToB, bToA)
+        };
+    }
+
     @Override
-    public void start(Stage stage) throws Exception
+    public InputStream getInputStream()
     {
-        MenuBar menuBar = new MenuBar();
+        return incoming.in;
+    }
 
-        // Network role menu
-        Menu roleMenu = new Menu("Networking Role");
-        MenuItem serverMenuItem = new MenuItem("Server");
-        MenuItem clientMenuItem = new MenuItem("Client...");
-        roleMenu.getItems().addAll(serverMenuItem, clientMenuItem);
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return outgoing.out;
+    }
 
-        // Game Menu       
-        gameMenu.getItems().addAll(playAgainMenuItem, exitMenuItem);
-        gameMenu.setDisable(true);
+    // Closing either end ends the stream in both directions, like a
+    // socket does.
+    @Override
+    public void close()
+    {
+        incoming.close();
+        outgoing.close();
+    }
 
-        menuBar.getMenus().addAll(roleMenu, gameMenu);
-        BorderPane outerPane = new BorderPane();
-        outerPane.setTop(menuBar);
+    // A bounded byte queue. Writers block while it is full and readers
+    // block while it is empty. Once closed, reads drain what is left and
+    // then report end of stream, and writes fail.
+    private static class RingBuffer
+    {
 
-        outerPane.setBottom(statusBar);
+        private final byte[] buffer;
+        private int head;
+        private int count;
+        private boolean closed;
 
-        statusBar.setEditable(false);
-        for (int r = 0; r < 3; r++)
+        final InputStream in = new InputStream()
         {
-            for (int c = 0; c < 3; c++)
+            @Override
+            public int read() throws IOException
             {
-                cells[r][c] = new TextField();
-                cells[r][c].setEditable(false);
-                cells[r][c].setFont(new Font(32));
-                tttBoard.add(cells[r][c], c, r);
-                cells[r][c].setPrefColumnCount(1);
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
             }
-        }
-        GameSharedVariables.tttBoard.setGridLinesVisible(true);
 
-        HBox centerHBox = new HBox(30);
-        centerHBox.getChildren().addAll(tttBoard,
-                chatHistoryTArea);
-
-        VBox centerVBox = new VBox(10);
-        Button sendMessageButton = new Button("Send Message");
-        HBox sendMessageButtonHBox = new HBox();
-        sendMessageButtonHBox.setAlignment(Pos.CENTER_RIGHT);
-        sendMessageButtonHBox.getChildren().add(sendMessageButton);
-        centerVBox.getChildren().addAll(centerHBox,
-                new Label("Type Message to send:"),
-                sendMessageTF,
-                sendMessageButtonHBox);
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                return RingBuffer.this.read(b, off, len);
+            }
 
-        outerPane.setCenter(centerVBox);
-        centerVBox.setPadding(new Insets(10));
+            @Override
+            public int available()
+            {
+                synchronized (RingBuffer.this)
+                {
+                    return count;
+                }
+            }
 
-        // Install the handlers on the Network Role menu items.
-        serverMenuItem.setOnAction(new ServerSelectHandler());
-        clientMenuItem.setOnAction(new ClientSelectHandler());
+            @Override
+            public void close()
+            {
+                RingBuffer.this.close();
+            }
+        };
 
-        // Install a handler on each of the Game menu items
-        exitMenuItem.setOnAction(new GameExitHandler());
-        playAgainMenuItem.setOnAction(new GamePlayAgainHandler());
+        final OutputStream out = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[]
+                {
+                    (byte) b
+                }, 0, 1);
+            }
 
-        // Install a handler on all the TTT cells
-        EventHandler<MouseEvent> tttCellHandler = new CellClickHandler();
-        for (int r = 0; r < 3; r++)
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                RingBuffer.this.write(b, off, len);
+            }
+
+            @Override
+            public void close()
+            {
+                RingBuffer.this.close();
+            }
+        };
+
+        RingBuffer(int size)
         {
-            for (int c = 0; c < 3; c++)
+            buffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
             {
-                cells[r][c].setOnMouseClicked(tttCellHandler);
+                return 0;
+            }
+            while (count == 0 && !closed)
+            {
+                waitForChange();
+            }
+            if (count == 0)
+            {
+                return -1;
             }
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
         }
 
-        // Install a handler on the SendMessage Button
-        sendMessageButton.setOnAction(new SendMessageButtonHandler());
+        synchronized void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                while (count == buffer.length && !closed)
+                {
+                    waitForChange();
+                }
+                if (closed)
+                {
+                    throw new IOException("Loopback connection is closed");
+                }
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count,
+                        buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
 
-        stage.setScene(new Scene(outerPane));
-        stage.setTitle("Tic Tac Toe");
-        stage.show();
+        synchronized void close()
+        {
+            closed = true;
+            notifyAll();
+        }
+
+        private void waitForChange() throws IOException
+        {
+            try
+            {
+                wait();
+            } catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
     }
+}
 
-    public static void main(String[] args)
+// Token bucket used to protect the local side against a flood of chat
+// messages. Each chat message costs one token, tokens are refilled at a
+// fixed rate up to the bucket capacity, and messages longer than
+// MAX_MESSAGE_LENGTH are refused outright. Refused messages are only
+// counted so that an abusive peer costs as little as possible; the count
+// is logged each time it reaches a power of two.
+// Calls to allows or tryAcquire must not overlap; they come from the
+// thread reading the connection or from the loop of the room.
+class ChatRateLimiter
+{
+
+    public static final int MAX_MESSAGE_LENGTH = 512;
+    public static final int DEFAULT_CAPACITY = 5;
+    public static final double DEFAULT_REFILL_PER_SECOND = 1.0;
+
+    private final int capacity;
+    private final double refillPerNano;
+    private double tokens;
+    private long lastRefill;
+    private volatile long droppedMessages;
+
+    public ChatRateLimiter()
     {
-        launch(args);
+        this(DEFAULT_CAPACITY, DEFAULT_REFILL_PER_SECOND);
+    }
+
+    public ChatRateLimiter(int capacity, double refillPerSecond)
+    {
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / 1_000_000_000.0;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    // Returns false if the protocol line is a chat message that has to be
+    // dropped. The opcode is found the same way handleRemote finds it.
+    public boolean allows(String line)
+    {
+        int start = NetComm.skipWhitespace(line, 0);
+        int end = NetComm.skipToWhitespace(line, start);
+        if (!line.startsWith("chat", start) || end - start != 4)
+        {
+            return true;
+        }
+        return tryAcquire(Math.max(0, line.length() - end - 1));
+    }
+
+    // Returns true if a chat message of the given length may be delivered,
+    // false if it has to be dropped.
+    public boolean tryAcquire(int messageLength)
+    {
+        if (messageLength > MAX_MESSAGE_LENGTH)
+        {
+            drop();
+            return false;
+        }
+
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+
+        if (tokens < 1.0)
+        {
+            drop();
+            return false;
+        }
+        tokens -= 1.0;
+        return true;
+    }
+
+    private void drop()
+    {
+        long dropped = ++droppedMessages;
+        if ((dropped & (dropped - 1)) == 0)
+        {
+            Logger.getLogger(ChatRateLimiter.class.getName()).log(Level.INFO,
+                    "Dropped {0} chat messages from the remote side.", dropped);
+        }
+    }
+
+    public long getDroppedMessages()
+    {
+        return droppedMessages;
     }
 }
 
-// This is the handler for the tic tac toe cells, when clicked on 
-// with a mouse. Handles interaction with the local player.
-// Make sure the local player does not play out of turn, or move 
-// into an occupied cell. Update the status bar as needed to inform the 
-// user if not their turn, or trying to make an illegal move.
-// Send notificaiton of local move to remote side, and check for
-// game win, game loss, or game tie and update status bar.
-// Update game state as needed after a local move.
-class CellClickHandler implements EventHandler<MouseEvent>, GameSharedVariables
+// BufferedReader whose readLine never holds more than maxLength + 1
+// characters of a line. The rest of a longer line is read and thrown
+// away up to the next line break, so such a line comes back cut to
+// maxLength + 1 characters and can be recognized by its length.
+class BoundedLineReader extends BufferedReader
 {
 
+    private final int maxLength;
+
+    public BoundedLineReader(Reader in, int maxLength)
+    {
+        super(in);
+        this.maxLength = maxLength;
+    }
+
     @Override
-    public void handle(MouseEvent event)
+    public String readLine() throws IOException
     {
-        if (gameState.localPlayerTurn)
+        int ch = read();
+        if (ch < 0)
         {
-            TextField textClick = (TextField) event.getSource();
+            return null;
+        }
 
-            int row = GridPane.getRowIndex(textClick);
-            int col = GridPane.getColumnIndex(textClick);
-            if (!(gameState.cellIsFilled[row][col]))
+        StringBuilder line = new StringBuilder();
+        while (ch >= 0 && ch != '\n')
+        {
+            if (ch == '\r')
             {
-                cells[row][col].setText(localPlayerId.toString());
-                gameState.localPlayerTurn = false;
-                gameState.cellIsFilled[row][col] = true;
-                netComm.writer.println("move " + row + " " + col);
-                gameState.numberOfCellsFilled++;
-
-                if (hasWon(localPlayerId.toString()))
-                {
-                    statusBar.setText("You Win");
-                    playAgainMenuItem.setDisable(false);
-                    gameState.gameOver = true;
-
-                } else if (gameState.numberOfCellsFilled == 9)
+                // Also accept "\r\n" and a lone "\r" as line breaks.
+                mark(1);
+                if (read() != '\n')
                 {
-                    statusBar.setText("catsgame");
-                    playAgainMenuItem.setDisable(false);
-                    gameState.gameOver = true;
+                    reset();
                 }
-            } else
+                break;
+            }
+            if (line.length() <= maxLength)
             {
-                InformationBox.showDialog("tictactoe", "Cell is taken, please "
-                        + "select another");
+                line.append((char) ch);
             }
-        } else
-        {
-            statusBar.setText("please wait your turn");
+            ch = read();
         }
+        return line.toString();
     }
 }
 
-/*
- This class is used to create a separate thread to monitor
- the incoming network connection and respond to protocol commands.
- */
-class RemoteInputHandler implements Runnable, GameSharedVariables
+// This class gatheres together various variables that 
+// keep track of the state of the game.
+class GameState
 {
 
-    @Override
-    public void run()
+    public int numberOfCellsFilled = 0;
+    public boolean localPlayerTurn;
+    public boolean localPlayerGoesFirst;
+    public boolean gameOver;
+    public boolean[][] cellIsFilled = new boolean[3][3];
+
+    // Zobrist hash of the marks on the board, kept up to date by
+    // recordMove and reset. Equal positions have equal hashes on both
+    // sides of a connection, so it can be used as the key of a
+    // PositionCache. Whose turn it is is not part of the hash; a cache
+    // that keeps moves for both marks has to add that to its key.
+    public long zobristHash;
+
+    // One random key per cell and mark, index 0 for "X" and 1 for "O".
+    // The seed is fixed so hashes are the same in every run.
+    private static final long[][][] ZOBRIST_KEYS = new long[3][3][2];
+
+    static
     {
-        try
+        SplittableRandom random = new SplittableRandom(0x5EED_7AC7_0E0FL);
+        for (int r = 0; r < 3; r++)
         {
-            String input = netComm.reader.readLine();
-            while (input != null)
+            for (int c = 0; c < 3; c++)
             {
-                // Make a separate copy of the input string 
-                String inputCopy = input;
-                // Post a work order to process the command on the GUI thread
-                Platform.runLater(() ->
-                {
-                    try
-                    {
-                        handleRemote(inputCopy);
-                    } catch (IOException ex)
-                    {
-                        Logger.getLogger(RemoteInputHandler.class.getName()).
-                                log(Level.SEVERE, null, ex);
-                    }
-                });
-                // Get the next remote input
-                input = netComm.reader.readLine();
+                ZOBRIST_KEYS[r][c][0] = random.nextLong();
+                ZOBRIST_KEYS[r][c][1] = random.nextLong();
             }
-        } catch (IOException ex)
+        }
+    }
+
+    // Marks the cell as filled by the player with the mark playerId,
+    // "X" or "O".
+    public void recordMove(int row, int col, String playerId)
+    {
+        cellIsFilled[row][col] = true;
+        numberOfCellsFilled++;
+        zobristHash ^= ZOBRIST_KEYS[row][col][playerId.equals("X") ? 0 : 1];
+    }
+
+    // resets these variables at the beginning of new game.
+    public void reset()
+    {
+        numberOfCellsFilled = 0;
+        localPlayerGoesFirst = !localPlayerGoesFirst;
+        localPlayerTurn = localPlayerGoesFirst;
+        gameOver = false;
+        zobristHash = 0;
+
+        for (int r = 0; r < 3; r++)
         {
-            throw new RuntimeException(ex);
+            for (int c = 0; c < 3; c++)
+            {
+                cellIsFilled[r][c] = false;
+            }
+        }
+    }
+}
+
+// This interface gatheres together various variables needed by different
+// parts of the program while the game is in progress.
+interface GameSharedVariables
+{
+
+    // Game menu stuff
+
+    public Menu gameMenu = new Menu("Game");
+    public MenuItem playAgainMenuItem = new MenuItem("Play Again");
+    public MenuItem exitMenuItem = new MenuItem("Exit");
+
+    final int row1 = 0;
+    final int row2 = 1;
+    final int row3 = 2;
+    final int col1 = 0;
+    final int col2 = 1;
+    final int col3 = 2;
+    // Other GUI components that need to be shared
+    public TextField statusBar = new TextField();
+    public GridPane tttBoard = new GridPane();
+    public TextArea chatHistoryTArea = new TextArea();
+    public TextField sendMessageTF = new TextField();
+    public TextField[][] cells = new TextField[3][3];
+
+   // This shared netComm object will be used to read and write the 
+    // network connections. The reader and writer in this
+    // object need to be initialized after the sockets are 
+    // connected.  
+    public NetComm netComm = new NetComm();
+
+   // The localPlayerId and remotePlayerId string builders need 
+    // to be initialized to "X" for the server and "O" for the client.
+    public StringBuilder localPlayerId = new StringBuilder();
+    public StringBuilder remotePlayerId = new StringBuilder();
+
+    // These default methods just return the strings from the string builders.
+
+    default String getLocalPlayerId()
+    {
+        return localPlayerId.toString();
+    }
+
+    default String getRemotePlayerId()
+    {
+        return remotePlayerId.toString();
+    }
+
+    public GameState gameState = new GameState();
+
+    // This methods is used to reset shared variables to restart the game.
+    default void reset()
+    {
+        // reset cells
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                cells[r][c].setText(" ");
+            }
+        }
+
+        // reset gameState
+        gameState.reset();
+        if (gameState.localPlayerGoesFirst)
+        {
+            statusBar.setText("Make a move.");
+        } else
+        {
+            statusBar.setText("Wait for your turn.");
+        }
+    }
+
+    // Check if the player has won
+    default boolean hasWon(String playerId)
+    {
+        boolean winner = false;
+
+        for (int i = 0; i < 3; i++)
+        {
+            winner = hasWonRow(i, playerId);
+            if (winner)
+            {
+                return winner;
+            }
+            winner = hasWonColumn(i, playerId);
+            if (winner)
+            {
+                return winner;
+            }
+        }
+        if (hasWonRisingDiag(playerId))
+        {
+            return true;
+        }
+        if (hasWonFallingDiag(playerId))
+        {
+            return true;
+        }
+
+        return winner;
+    }
+
+    // Check if the player has won a row
+
+    default boolean hasWonRow(int r, String playerId)
+    {
+        if (cells[r][col1].getText().equals(playerId)
+                && cells[r][col2].getText().equals(playerId)
+                && cells[r][col3].getText().equals(playerId))
+        {
+            return true;
+        } else
+        {
+            return false;
+        }
+    }
+
+    // Check if the player has won column.
+    default boolean hasWonColumn(int c, String playerId)
+    {
+        if (cells[row1][c].getText().equals(playerId)
+                && cells[row2][c].getText().equals(playerId)
+                && cells[row3][c].getText().equals(playerId))
+        {
+            return true;
+        } else
+        {
+            return false;
+        }
+    }
+
+    // Check if the player has won the rising diagonal.
+    default boolean hasWonRisingDiag(String playerId)
+    {
+        if (cells[row3][col1].getText().equals(playerId)
+                && cells[row2][col2].getText().equals(playerId)
+                && cells[row1][col3].getText().equals(playerId))
+        {
+            return true;
+        } else
+        {
+            return false;
+        }
+    }
+
+    // Check if the player has won the falling diagonal.
+    default boolean hasWonFallingDiag(String playerId)
+    {
+        if (cells[row1][col1].getText().equals(playerId)
+                && cells[row2][col2].getText().equals(playerId)
+                && cells[row3][col3].getText().equals(playerId))
+        {
+            return true;
+        } else
+        {
+            return false;
+        }
+    }
+}
+
+// This class is the main JavaFX application. It builds the user interface
+// and attaches the event handlers.
+public class TicTacToe extends Application implements GameSharedVariables
+{
+
+    @Override
+    public void start(Stage stage) throws Exception
+    {
+        MenuBar menuBar = new MenuBar();
+
+        // Network role menu
+        Menu roleMenu = new Menu("Networking Role");
+        MenuItem serverMenuItem = new MenuItem("Server");
+        MenuItem clientMenuItem = new MenuItem("Client...");
+        roleMenu.getItems().addAll(serverMenuItem, clientMenuItem);
+
+        // Game Menu       
+        gameMenu.getItems().addAll(playAgainMenuItem, exitMenuItem);
+        gameMenu.setDisable(true);
+
+        menuBar.getMenus().addAll(roleMenu, gameMenu);
+        BorderPane outerPane = new BorderPane();
+        outerPane.setTop(menuBar);
+
+        outerPane.setBottom(statusBar);
+
+        statusBar.setEditable(false);
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                cells[r][c] = new TextField();
+                cells[r][c].setEditable(false);
+                cells[r][c].setFont(new Font(32));
+                tttBoard.add(cells[r][c], c, r);
+                cells[r][c].setPrefColumnCount(1);
+            }
+        }
+        GameSharedVariables.tttBoard.setGridLinesVisible(true);
+
+        HBox centerHBox = new HBox(30);
+        centerHBox.getChildren().addAll(tttBoard,
+                chatHistoryTArea);
+
+        VBox centerVBox = new VBox(10);
+        Button sendMessageButton = new Button("Send Message");
+        HBox sendMessageButtonHBox = new HBox();
+        sendMessageButtonHBox.setAlignment(Pos.CENTER_RIGHT);
+        sendMessageButtonHBox.getChildren().add(sendMessageButton);
+        centerVBox.getChildren().addAll(centerHBox,
+                new Label("Type Message to send:"),
+                sendMessageTF,
+                sendMessageButtonHBox);
+
+        outerPane.setCenter(centerVBox);
+        centerVBox.setPadding(new Insets(10));
+
+        // Install the handlers on the Network Role menu items.
+        serverMenuItem.setOnAction(new ServerSelectHandler());
+        clientMenuItem.setOnAction(new ClientSelectHandler());
+
+        // Install a handler on each of the Game menu items
+        exitMenuItem.setOnAction(new GameExitHandler());
+        playAgainMenuItem.setOnAction(new GamePlayAgainHandler());
+
+        // Install a handler on all the TTT cells
+        EventHandler<MouseEvent> tttCellHandler = new CellClickHandler();
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                cells[r][c].setOnMouseClicked(tttCellHandler);
+            }
+        }
+
+        // Install a handler on the SendMessage Button
+        sendMessageButton.setOnAction(new SendMessageButtonHandler());
+
+        stage.setScene(new Scene(outerPane));
+        stage.setTitle("Tic Tac Toe");
+        stage.show();
+    }
+
+    public static void main(String[] args)
+    {
+        launch(args);
+    }
+}
+
+// This is the handler for the tic tac toe cells, when clicked on 
+// with a mouse. Handles interaction with the local player.
+// Make sure the local player does not play out of turn, or move 
+// into an occupied cell. Update the status bar as needed to inform the 
+// user if not their turn, or trying to make an illegal move.
+// Send notificaiton of local move to remote side, and check for
+// game win, game loss, or game tie and update status bar.
+// Update game state as needed after a local move.
+class CellClickHandler implements EventHandler<MouseEvent>, GameSharedVariables
+{
+
+    @Override
+    public void handle(MouseEvent event)
+    {
+        if (gameState.localPlayerTurn)
+        {
+            TextField textClick = (TextField) event.getSource();
+
+            int row = GridPane.getRowIndex(textClick);
+            int col = GridPane.getColumnIndex(textClick);
+            if (!(gameState.cellIsFilled[row][col]))
+            {
+                cells[row][col].setText(localPlayerId.toString());
+                gameState.localPlayerTurn = false;
+                gameState.recordMove(row, col, localPlayerId.toString());
+                netComm.writer.println("move " + row + " " + col);
+
+                if (hasWon(localPlayerId.toString()))
+                {
+                    statusBar.setText("You Win");
+                    playAgainMenuItem.setDisable(false);
+                    gameState.gameOver = true;
+
+                } else if (gameState.numberOfCellsFilled == 9)
+                {
+                    statusBar.setText("catsgame");
+                    playAgainMenuItem.setDisable(false);
+                    gameState.gameOver = true;
+                }
+            } else
+            {
+                InformationBox.showDialog("tictactoe", "Cell is taken, please "
+                        + "select another");
+            }
+        } else
+        {
+            statusBar.setText("please wait your turn");
+        }
+    }
+}
+
+/*
+ This class is used to create a separate thread to monitor
+ the incoming network connection and respond to protocol commands.
+ */
+class RemoteInputHandler implements Runnable, GameSharedVariables
+{
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            String input = netComm.reader.readLine();
+            while (input != null)
+            {
+                // Drop chat floods here, before they reach the GUI thread.
+                if (!netComm.chatLimiter.allows(input))
+                {
+                    input = netComm.reader.readLine();
+                    continue;
+                }
+
+                // Make a separate copy of the input string 
+                String inputCopy = input;
+                // Post a work order to process the command on the GUI thread
+                Platform.runLater(() ->
+                {
+                    try
+                    {
+                        handleRemote(inputCopy);
+                    } catch (IOException ex)
+                    {
+                        Logger.getLogger(RemoteInputHandler.class.getName()).
+                                log(Level.SEVERE, null, ex);
+                    }
+                });
+                // Get the next remote input
+                input = netComm.reader.readLine();
+            }
+        } catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+
+    }
+
+    // Will be posted to the GUI thread to update GUI and program variables.
+    // Make sure all received protocol messaages are handled appropriately
+    // and that local GUI.  game state, and status bar are correctly updated.
+
+    private void handleRemote(String cmd) throws IOException
+    {
+        Scanner sc = new Scanner(cmd);
+        String opcode = sc.next();
+        switch (opcode)
+        {
+            case "chat":
+                String chatMessage = " ";
+                while (sc.hasNext())
+                {
+                    chatMessage += sc.next() + " ";
+                }
+                chatHistoryTArea.appendText(remotePlayerId+ "> "
+                        +chatMessage + "\n");
+                System.out.println(remotePlayerId);
+                break;
+            case "move":
+                int row = sc.nextInt();
+                int col = sc.nextInt();
+                processMove(row, col);
+
+                break;
+            case "exit":
+                InformationBox end = new InformationBox("Tic Tac Toe", 
+                        "Opponent has quit.");
+                end.showAndWait();
+                Platform.exit();
+                
+                break;
+            case "playagain":
+                String playAgain = sc.next();
+                switch (playAgain)
+                {
+                    case "consent":
+                        MessageBox play = new MessageBox("Tic Tac Toe",
+                                "Opponent has consented to a new game.");
+                        play.showAndWait();
+
+                        if (play.returnValue == 1)
+                        {
+
+                            reset();
+                            netComm.writer.println("playagain ready");
+
+                        } else
+                        {
+
+                            
+                            netComm.writer.println("exit");
+                            Platform.exit();
+                        }
+                        break;
+                    case "query":
+                        MessageBox consent = new MessageBox("Tic Tac Toe",
+                                "Do you want to play again?");
+                        consent.showAndWait();
+
+                        if (consent.returnValue == 1)
+                        {
+
+                            netComm.writer.println("playagain consent");
+                            reset();
+                        } else
+                        {
+
+                            netComm.writer.println("exit");
+                           
+                            Platform.exit();
+                        }
+                        break;
+                    case "deny":
+                        
+                        Platform.exit();
+                        break;
+                    case "exit":
+                            InformationBox exit = new InformationBox("tic tac "
+                                    + "toe", "opponent has exited");
+                }
+
+        }
+    }
+
+    // Used to process a protocol move row col command.
+    // Must do all appropriate updates of game state
+    // and GUI variables, including status bar.
+    private void processMove(int row, int col)
+    {
+        cells[row][col].setText(remotePlayerId.toString());
+
+        gameState.recordMove(row, col, remotePlayerId.toString());
+        if (hasWon(remotePlayerId.toString()))
+        {
+            statusBar.setText("You Lose");
+            playAgainMenuItem.setDisable(false);
+            gameState.gameOver = true;
+
+        } else if (gameState.numberOfCellsFilled == 9)
+        {
+            statusBar.setText("catsgame");
+            gameState.gameOver = true;
+        } else
+        {
+
+            gameState.localPlayerTurn = true;
+        }
+    }
+}
+
+// This code is given as an example.
+class ServerSelectHandler implements EventHandler<ActionEvent>, GameSharedVariables
+{
+
+    @Override
+    public void handle(ActionEvent event)
+    {
+        // This is the server.
+        // server is "X" and client is "O".
+        localPlayerId.append("X");
+        remotePlayerId.append("O");
+        statusBar.setText("Server role selected");
+        gameState.localPlayerTurn = true; // Server goes first the first time
+        gameState.numberOfCellsFilled = 0;
+        gameState.localPlayerGoesFirst = true;
+        
+        try
+        {
+
+            // Set up server socket
+            ServerSocket serverSock = new ServerSocket(50000);
+
+            System.err.println("Created the server socket.");
+            statusBar.setText("Please wait for a client to connect.");
+
+            Socket sock = serverSock.accept();
+            statusBar.setText("Client has connected. Make a move.");
+            netComm.connect(new SocketTransport(sock));
+
+            // Set up a thread to monitor the incoming connection
+            new Thread(new RemoteInputHandler()).start();
+        } catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+        gameMenu.setDisable(false);
+        playAgainMenuItem.setDisable(true);
+    }
+}
+
+// This handles the client connection. 
+class ClientSelectHandler implements EventHandler<ActionEvent>, GameSharedVariables
+{
+
+    @Override
+    public void handle(ActionEvent event)
+    {
+        // This is the server.
+        // server is "X" and client is "O".
+        localPlayerId.append("O");
+        remotePlayerId.append("X");
+        statusBar.setText("Client Role is selected");
+        gameState.localPlayerTurn = false; // Server goes first the first time
+        gameState.numberOfCellsFilled = 0;
+        gameState.localPlayerGoesFirst = false;
+
+        try
+        {
+            MyInputPane clientConnect = new MyInputPane("Server Connect",
+                    "Please enter the IP adress");
+            String ip = clientConnect.showDialog();
+            // Set up server socket
+            statusBar.setText("please wait while you are connected");
+            Socket sock = new Socket(ip, 50000);
+            System.err.println("Connect to server");
+            statusBar.setText("please wait for the other player to move");
+
+            netComm.connect(new SocketTransport(sock));
+
+            // Set up a thread to monitor the incoming connection
+            new Thread(new RemoteInputHandler()).start();
+        } catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+        gameMenu.setDisable(false);
+        playAgainMenuItem.setDisable(true);
+    }
+}
+
+// Entry point for running a server without the JavaFX toolkit.
+// TicTacToe.main cannot be used for this, since initializing the
+// TicTacToe class also initializes GameSharedVariables and its GUI
+// components. Start it with
+//
+//     java -cp . HeadlessServer --server [--port 50000]
+//
+// The port is bound immediately and every client that connects gets its
+// own game against the server, which plays "X". Games are spread over
+// one event loop per core by a RoomScheduler, and those loops also read
+// the sockets, so the number of threads does not grow with the number
+// of connections.
+//
+// Startup can be shortened further with a class data sharing archive.
+// The JVM only archives classes loaded from a jar, so package them with
+//
+//     jar cf tictactoe.jar *.class
+//
+// then create the archive once with a training run, which plays a few
+// games in-process without binding the server port,
+//
+//     java -XX:ArchiveClassesAtExit=server.jsa -cp tictactoe.jar HeadlessServer --server --warmup
+//
+// and start later instances with
+//
+//     java -XX:SharedArchiveFile=server.jsa -cp tictactoe.jar HeadlessServer --server
+//
+// With --engine-millis N the server's moves are picked by an MctsEngine
+// that searches for N milliseconds per move, and the moves are kept in
+// a PositionCache shared by all games. The engine logs its playout rate
+// and how long searches waited for a worker once a minute. With --ratings FILE the
+// server keeps player ratings in a RatingStore, loaded from FILE at
+// startup and snapshotted back to it periodically.
+class HeadlessServer
+{
+
+    public static final int DEFAULT_PORT = 50000;
+    public static final int REBALANCE_PERIOD_SECONDS = 5;
+    public static final int SNAPSHOT_PERIOD_SECONDS = 30;
+    public static final int ENGINE_REPORT_PERIOD_SECONDS = 60;
+    public static final long POSITION_CACHE_BYTES = 16L << 20;
+    public static final long ACCEPT_RETRY_MILLIS = 100;
+
+    // Used before the first client is accepted, since setting up logging
+    // and formatting the first record open files, which fails once the
+    // process is out of file descriptors.
+    private static final Logger LOGGER =
+            Logger.getLogger(HeadlessServer.class.getName());
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = DEFAULT_PORT;
+        boolean warmup = false;
+        long engineMillis = 0;
+        Path ratingsFile = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--server":
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = true;
+                    break;
+                case "--engine-millis":
+                    engineMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--ratings":
+                    ratingsFile = Paths.get(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        if (warmup)
+        {
+            warmUp();
+            return;
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        LOGGER.info("Created the server socket on port " + port + ".");
+
+        HeadlessServices services = new HeadlessServices();
+        services.scheduler = new RoomScheduler(
+                Runtime.getRuntime().availableProcessors());
+        services.scheduler.startRebalancing(REBALANCE_PERIOD_SECONDS);
+        if (engineMillis > 0)
+        {
+            services.engine = new MctsEngine(3, 3, 3,
+                    Runtime.getRuntime().availableProcessors());
+            services.engineMillis = engineMillis;
+            services.engine.startReporting(ENGINE_REPORT_PERIOD_SECONDS);
+            services.positionCache = new PositionCache(POSITION_CACHE_BYTES);
+        }
+
+        if (ratingsFile != null)
+        {
+            services.ratings = Files.exists(ratingsFile)
+                    ? RatingStore.load(ratingsFile) : new RatingStore();
+            services.ratings.startSnapshots(ratingsFile, SNAPSHOT_PERIOD_SECONDS);
+
+            // Keep the results since the last periodic snapshot.
+            RatingStore ratings = services.ratings;
+            Path file = ratingsFile;
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+            {
+                try
+                {
+                    ratings.snapshot(file);
+                } catch (IOException ex)
+                {
+                    Logger.getLogger(HeadlessServer.class.getName()).
+                            log(Level.SEVERE, null, ex);
+                }
+            }, "rating-final-snapshot"));
+            System.err.println("Loaded ratings for "
+                    + services.ratings.getNumberOfPlayers() + " players.");
+        }
+
+        while (true)
+        {
+            acceptClient(serverChannel, services);
+        }
+    }
+
+    // Accepts one connection and starts a game on it. A failure only
+    // costs that connection, so the server keeps running when it is out
+    // of file descriptors or a client gives up while being accepted.
+    private static void acceptClient(ServerSocketChannel serverChannel,
+            HeadlessServices services)
+    {
+        SocketChannel channel = null;
+        try
+        {
+            channel = serverChannel.accept();
+            new HeadlessGame(services).start(new ChannelTransport(channel));
+        } catch (IOException ex)
+        {
+            LOGGER.log(Level.WARNING, "Could not accept a client", ex);
+            if (channel != null)
+            {
+                try
+                {
+                    channel.close();
+                } catch (IOException closeEx)
+                {
+                    LOGGER.log(Level.WARNING, null, closeEx);
+                }
+            } else
+            {
+                // accept itself failed, most likely for lack of file
+                // descriptors. Give games a moment to end before trying
+                // again instead of spinning.
+                try
+                {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // Serves a few games with every feature turned on, so that a training
+    // run loads the classes a real server needs before the JVM writes the
+    // class data sharing archive. Only an ephemeral loopback port is bound.
+    static void warmUp() throws IOException
+    {
+        new LoopbackSimulation().playSession(20, 1);
+
+        HeadlessServices services = new HeadlessServices();
+        services.scheduler = new RoomScheduler(1);
+        services.scheduler.rebalance();
+        services.engine = new MctsEngine(3, 3, 3, 1);
+        services.engineMillis = 10;
+        services.positionCache = new PositionCache(1 << 16);
+        services.ratings = new RatingStore();
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open())
+        {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            for (int i = 0; i < 2; i++)
+            {
+                try (Socket sock = new Socket(InetAddress.getLoopbackAddress(),
+                        serverChannel.socket().getLocalPort()))
+                {
+                    new HeadlessGame(services).start(
+                            new ChannelTransport(serverChannel.accept()));
+                    NetComm client = new NetComm();
+                    client.connect(new SocketTransport(sock));
+                    playWarmUpGame(client);
+                }
+            }
+        }
+
+        Path snapshot = Files.createTempFile("ratings", ".bin");
+        try
+        {
+            services.ratings.snapshot(snapshot);
+            RatingStore.load(snapshot);
+        } finally
+        {
+            Files.deleteIfExists(snapshot);
+        }
+        services.engine.shutdown();
+        services.scheduler.shutdown();
+        System.err.println("Warm-up done.");
+    }
+
+    // Plays one game as a client that takes the first free cell.
+    private static void playWarmUpGame(NetComm client) throws IOException
+    {
+        boolean[] filled = new boolean[9];
+        client.writer.println("player new");
+        client.writer.println("chat warming up");
+        String line = client.reader.readLine();
+        while (line != null)
+        {
+            Scanner sc = new Scanner(line);
+            if (sc.next().equals("move"))
+            {
+                filled[sc.nextInt() * 3 + sc.nextInt()] = true;
+                int cell = 0;
+                while (cell < 9 && filled[cell])
+                {
+                    cell++;
+                }
+                if (cell == 9)
+                {
+                    break;
+                }
+                filled[cell] = true;
+                client.writer.println("move " + cell / 3 + " " + cell % 3);
+                // The server does not answer a move that ends the game, so
+                // ask for a new game, which it answers once it is over.
+                client.writer.println("playagain query");
+            } else if (line.startsWith("playagain"))
+            {
+                break;
+            }
+            line = client.reader.readLine();
+        }
+        client.writer.println("exit");
+    }
+}
+
+// What a headless server shares between all of its games. Fields left
+// null turn the feature off; only the scheduler is needed to serve a
+// connection.
+class HeadlessServices
+{
+
+    public RoomScheduler scheduler;
+    public MctsEngine engine;
+    public long engineMillis;
+    public RatingStore ratings;
+    public PositionCache positionCache;
+}
+
+// One game played by the headless server against a single client.
+// Speaks the same protocol as the GUI, with the server always as "X".
+class HeadlessGame implements RoomScheduler.LineListener
+{
+
+    private static final String LOCAL_PLAYER_ID = "X";
+    private static final String REMOTE_PLAYER_ID = "O";
+
+    // Every player new adds a record to the RatingStore for good, so one
+    // connection only gets this many.
+    private static final int MAX_REGISTRATIONS_PER_CONNECTION = 1;
+
+    private final NetComm netComm = new NetComm();
+    private final GameState gameState = new GameState();
+    private final String[][] board = new String[3][3];
+
+    // The room this game belongs to. Everything that touches the game
+    // state runs on the event loop that owns the room, so none of it
+    // needs locking.
+    private final RoomScheduler scheduler;
+    private final RoomScheduler.Room room;
+    private volatile boolean closed;
+
+    // Picks the server's moves when set, otherwise chooseMove does.
+    private final MctsEngine engine;
+    private final long engineMillis;
+    private int gameNumber;
+    private boolean waitingForReady;
+
+    // Engine moves keyed by GameState.zobristHash, shared by all games.
+    // A value holds the move in its low 8 bits and the number of
+    // playouts the search actually ran above them.
+    private final PositionCache positionCache;
+
+    // Finished games are rated here once the client has identified
+    // itself with a player command. Only used on the room loop.
+    private final RatingStore ratings;
+    private long clientPlayerId = -1;
+    private int registrations;
+
+    public HeadlessGame(HeadlessServices services)
+    {
+        this.scheduler = services.scheduler;
+        this.room = scheduler == null ? null : scheduler.openRoom();
+        this.engine = services.engine;
+        this.engineMillis = services.engineMillis;
+        this.positionCache = services.positionCache;
+        this.ratings = services.ratings;
+        gameState.localPlayerGoesFirst = true;
+        gameState.localPlayerTurn = true;
+    }
+
+    // Starts serving a client on a socket channel, which is read by the
+    // room's event loop. Needs a scheduler.
+    public void start(ChannelTransport channel) throws IOException
+    {
+        netComm.connectOutput(channel);
+        scheduler.attach(room, channel, this);
+        openGame();
+    }
+
+    // Starts serving a client on a stream. With a scheduler a reader
+    // thread hands each line to the room's loop, much like
+    // RemoteInputHandler hands them to the GUI thread. Without one
+    // nothing runs in the background and the caller feeds the game with
+    // pump().
+    public void start(StreamTransport stream) throws IOException
+    {
+        netComm.connect(stream);
+        if (scheduler != null)
+        {
+            Thread reader = new Thread(this::readLines,
+                    "game-reader-" + room.id);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        openGame();
+    }
+
+    private void openGame()
+    {
+        execute(() ->
+        {
+            if (gameState.localPlayerTurn)
+            {
+                makeLocalMove();
+            }
+        });
+    }
+
+    private void readLines()
+    {
+        try
+        {
+            String input = netComm.reader.readLine();
+            while (input != null && !closed)
+            {
+                String inputCopy = input;
+                execute(() -> onLine(inputCopy));
+                input = netComm.reader.readLine();
+            }
+        } catch (IOException ex)
+        {
+            if (!closed)
+            {
+                Logger.getLogger(HeadlessGame.class.getName()).
+                        log(Level.WARNING, null, ex);
+            }
+        } finally
+        {
+            execute(this::close);
+        }
+    }
+
+    // Handles every line that has already arrived, on the calling thread.
+    // Only for games without a scheduler, see LoopbackSimulation.
+    public void pump() throws IOException
+    {
+        while (!closed && netComm.reader.ready())
+        {
+            onLine(netComm.reader.readLine());
+        }
+    }
+
+    // Runs the task on the room's loop, or right away without a scheduler.
+    private void execute(Runnable task)
+    {
+        if (scheduler == null)
+        {
+            task.run();
+        } else
+        {
+            scheduler.post(room, task);
+        }
+    }
+
+    // Runs on the room's loop for every line the client sends. Chat is
+    // rate limited like everywhere else; nobody reads it on the server.
+    @Override
+    public void onLine(String line)
+    {
+        if (!closed && netComm.chatLimiter.allows(line) && !handleRemote(line))
+        {
+            close();
+        }
+    }
+
+    @Override
+    public void onClosed()
+    {
+        close();
+    }
+
+    private void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        if (scheduler != null)
+        {
+            scheduler.closeRoom(room);
+        }
+        try
+        {
+            netComm.close();
+        } catch (IOException ex)
+        {
+            Logger.getLogger(HeadlessGame.class.getName()).
+                    log(Level.WARNING, null, ex);
+        }
+    }
+
+    // Handles one protocol command. Returns false once the connection
+    // should be closed.
+    private boolean handleRemote(String cmd)
+    {
+        if (closed)
+        {
+            return false;
+        }
+
+        Scanner sc = new Scanner(cmd);
+        if (!sc.hasNext())
+        {
+            return true;
+        }
+        String opcode = sc.next();
+        if (waitingForReady && !opcode.equals("exit"))
+        {
+            // The client has seen the new game, so the server's opening
+            // move will no longer be wiped by its reset.
+            waitingForReady = false;
+            makeLocalMove();
+        }
+
+        switch (opcode)
+        {
+            case "move":
+                if (!sc.hasNextInt())
+                {
+                    return false;
+                }
+                int row = sc.nextInt();
+                if (!sc.hasNextInt())
+                {
+                    return false;
+                }
+                int col = sc.nextInt();
+                if (row < 0 || row > 2 || col < 0 || col > 2)
+                {
+                    return false;
+                }
+                if (gameState.gameOver || gameState.localPlayerTurn
+                        || gameState.cellIsFilled[row][col])
+                {
+                    return true;
+                }
+                fillCell(row, col, REMOTE_PLAYER_ID);
+                if (!gameState.gameOver)
+                {
+                    makeLocalMove();
+                }
+                break;
+            case "playagain":
+                if (gameState.gameOver && sc.hasNext()
+                        && sc.next().equals("query"))
+                {
+                    netComm.writer.println("playagain consent");
+                    reset();
+                    // The client only resets after its user confirms, so
+                    // an opening move sent now could be lost. Wait for
+                    // playagain ready or any other command instead.
+                    waitingForReady = gameState.localPlayerTurn;
+                }
+                break;
+            case "player":
+                if (ratings == null)
+                {
+                    break;
+                }
+                if (sc.hasNext("new"))
+                {
+                    if (registrations == MAX_REGISTRATIONS_PER_CONNECTION)
+                    {
+                        netComm.writer.println("player denied");
+                        break;
+                    }
+                    registrations++;
+                    long[] credentials = ratings.registerPlayer();
+                    clientPlayerId = credentials[0];
+                    netComm.writer.println("player " + credentials[0] + " "
+                            + credentials[1]);
+                } else if (sc.hasNextLong())
+                {
+                    long id = sc.nextLong();
+                    if (sc.hasNextLong() && ratings.authenticate(id, sc.nextLong()))
+                    {
+                        clientPlayerId = id;
+                        netComm.writer.println("player accepted");
+                    } else
+                    {
+                        netComm.writer.println("player denied");
+                    }
+                }
+                break;
+            case "exit":
+                return false;
+        }
+        return true;
+    }
+
+    private void makeLocalMove()
+    {
+        if (engine == null)
+        {
+            playLocalMove(chooseMove());
+            return;
+        }
+
+        // Positions the engine has already searched, in this game or any
+        // other, are answered from the cache. Only searches that ran at
+        // least half the playouts the budget is good for are cached or
+        // replayed, so a search that was cut short, or one made with a
+        // smaller budget, is searched again.
+        long position = gameState.zobristHash;
+        long wantedPlayouts = engine.expectedPlayouts(engineMillis) / 2;
+        if (positionCache != null && wantedPlayouts > 0)
+        {
+            long cached = positionCache.get(position);
+            if (cached != PositionCache.NOT_FOUND && cached >>> 8 >= wantedPlayouts)
+            {
+                playLocalMove((int) (cached & 0xff));
+                return;
+            }
+        }
+
+        // The engine thinks on its own threads and its move is posted
+        // back to the room, just like a move arriving from a client. If
+        // the search fails, chooseMove picks the move instead.
+        int searchedGame = gameNumber;
+        engine.search(toEngineBoard(), MctsEngine.PLAYER_ONE, engineMillis)
+                .whenComplete((result, ex) ->
+                {
+                    if (ex != null)
+                    {
+                        Logger.getLogger(HeadlessGame.class.getName()).
+                                log(Level.WARNING, "Engine search failed", ex);
+                    } else
+                    {
+                        if (positionCache != null && result.move >= 0
+                                && wantedPlayouts > 0
+                                && result.playouts >= wantedPlayouts)
+                        {
+                            positionCache.put(position,
+                                    result.playouts << 8 | result.move);
+                        }
+                        Logger.getLogger(HeadlessGame.class.getName()).log(
+                                Level.FINE, "{0} playouts, {1} playouts/s, "
+                                + "{2} ms queued, {3}", new Object[]
+                                {
+                                    result.playouts,
+                                    (long) result.playoutsPerSecond(),
+                                    result.queuedNanos / 1_000_000,
+                                    positionCache
+                                });
+                    }
+                    execute(() ->
+                    {
+                        if (searchedGame == gameNumber && !closed
+                                && !gameState.gameOver)
+                        {
+                            playLocalMove(ex == null && result.move >= 0
+                                    ? result.move : chooseMove());
+                        }
+                    });
+                });
+    }
+
+    private void playLocalMove(int move)
+    {
+        int row = move / 3;
+        int col = move % 3;
+        fillCell(row, col, LOCAL_PLAYER_ID);
+        netComm.writer.println("move " + row + " " + col);
+    }
+
+    // The board as the engine sees it, with the server as PLAYER_ONE.
+    private byte[] toEngineBoard()
+    {
+        byte[] cells = new byte[9];
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                if (LOCAL_PLAYER_ID.equals(board[r][c]))
+                {
+                    cells[r * 3 + c] = MctsEngine.PLAYER_ONE;
+                } else if (REMOTE_PLAYER_ID.equals(board[r][c]))
+                {
+                    cells[r * 3 + c] = MctsEngine.PLAYER_TWO;
+                }
+            }
+        }
+        return cells;
+    }
+
+    // Updates the board and game state after a move by either player.
+    private void fillCell(int row, int col, String playerId)
+    {
+        board[row][col] = playerId;
+        gameState.recordMove(row, col, playerId);
+        gameState.localPlayerTurn = !playerId.equals(LOCAL_PLAYER_ID);
+
+        if (hasWon(playerId))
+        {
+            gameState.gameOver = true;
+            recordResult(playerId.equals(LOCAL_PLAYER_ID)
+                    ? RatingStore.OUTCOME_LOSS : RatingStore.OUTCOME_WIN);
+        } else if (gameState.numberOfCellsFilled == 9)
+        {
+            gameState.gameOver = true;
+            recordResult(RatingStore.OUTCOME_DRAW);
+        }
+    }
+
+    // outcome is seen from the client's side.
+    private void recordResult(int outcome)
+    {
+        if (ratings != null && clientPlayerId > 0)
+        {
+            ratings.recordGameAgainstHouse(clientPlayerId, outcome);
+        }
+    }
+
+    private void reset()
+    {
+        gameState.reset();
+        gameNumber++;
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                board[r][c] = null;
+            }
+        }
+    }
+
+    // Picks a cell for the server, encoded as row * 3 + col. Wins if it
+    // can, blocks the opponent if it must, and otherwise prefers the
+    // center, then the corners, then the edges.
+    int chooseMove()
+    {
+        int move = findCompletingMove(LOCAL_PLAYER_ID);
+        if (move < 0)
+        {
+            move = findCompletingMove(REMOTE_PLAYER_ID);
+        }
+        if (move < 0)
+        {
+            int[] preference = {4, 0, 2, 6, 8, 1, 3, 5, 7};
+            for (int cell : preference)
+            {
+                if (!gameState.cellIsFilled[cell / 3][cell % 3])
+                {
+                    return cell;
+                }
+            }
+        }
+        return move;
+    }
+
+    // Returns a free cell that wins the game for playerId, or -1.
+    private int findCompletingMove(String playerId)
+    {
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                if (!gameState.cellIsFilled[r][c])
+                {
+                    board[r][c] = playerId;
+                    boolean won = hasWon(playerId);
+                    board[r][c] = null;
+                    if (won)
+                    {
+                        return r * 3 + c;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasWon(String playerId)
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            if (playerId.equals(board[i][0]) && playerId.equals(board[i][1])
+                    && playerId.equals(board[i][2]))
+            {
+                return true;
+            }
+            if (playerId.equals(board[0][i]) && playerId.equals(board[1][i])
+                    && playerId.equals(board[2][i]))
+            {
+                return true;
+            }
+        }
+        return (playerId.equals(board[2][0]) && playerId.equals(board[1][1])
+                && playerId.equals(board[0][2]))
+                || (playerId.equals(board[0][0]) && playerId.equals(board[1][1])
+                && playerId.equals(board[2][2]));
+    }
+}
+
+// Plays whole games over the real protocol without a network. A
+// simulated client and a HeadlessGame talk through a LoopbackTransport
+// pair, and both are driven from the calling thread, so a run with the
+// same seed always produces the same games. The client picks random
+// free cells and asks for another game each time one ends.
+//
+// The GUI side of the protocol, CellClickHandler and RemoteInputHandler,
+// is not covered. Those handlers keep their state in the JavaFX controls
+// of GameSharedVariables and cannot run without the toolkit, so the
+// client here is a stand-in that speaks the protocol directly. It only
+// shares the BoundedLineReader and ChatRateLimiter a GUI peer reads
+// through; changes to the GUI handlers still have to be tried by hand.
+//
+//     java -cp . LoopbackSimulation [--games N] [--seed S] [--loops K]
+//
+// With --loops K it also measures the path a real server takes. For
+// RoomScheduler sizes of 1, 2, 4 ... K loops, sessions connect over
+// loopback TCP and both the HeadlessGame and the simulated client of
+// each session are served by the scheduler, so every command is read by
+// a loop's selector and dispatched to its room. It reports the games
+// per second for each size.
+class LoopbackSimulation
+{
+
+    public static final int DEFAULT_GAMES = 10000;
+    public static final int GAMES_PER_SESSION = 100;
+
+    // Results of a run: wins of the server, wins of the client, draws.
+    private long serverWins;
+    private long clientWins;
+    private long draws;
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        int games = DEFAULT_GAMES;
+        long seed = 1;
+        int maxLoops = 0;
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--games":
+                    games = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--loops":
+                    maxLoops = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        LoopbackSimulation simulation = new LoopbackSimulation();
+        long start = System.nanoTime();
+        simulation.playSession(games, seed);
+        long elapsed = System.nanoTime() - start;
+        System.out.println(simulation + String.format(", %.0f games/s",
+                games * 1e9 / elapsed));
+
+        if (maxLoops > 0)
+        {
+            // Untimed, so that the first measurement is not the one paying
+            // for the JIT.
+            measureLoops(maxLoops, games, seed);
+        }
+        for (int loops = 1; loops <= maxLoops; loops *= 2)
+        {
+            System.out.println(String.format("%d loops: %.0f games/s", loops,
+                    measureLoops(loops, games, seed)));
+        }
+    }
+
+    // Plays the given number of games on one connection.
+    public void playSession(int games, long seed) throws IOException
+    {
+        LoopbackTransport[] pair = LoopbackTransport.pair();
+        HeadlessGame server = new HeadlessGame(new HeadlessServices());
+        NetComm clientComm = new NetComm();
+        clientComm.connect(pair[1]);
+        SimulatedClient client = new SimulatedClient(this, clientComm, seed,
+                games, () ->
+        {
+        });
+        server.start(pair[0]);
+
+        while (!client.isDone())
+        {
+            server.pump();
+            if (!clientComm.reader.ready())
+            {
+                throw new IllegalStateException("The server stopped answering");
+            }
+            while (clientComm.reader.ready() && !client.isDone())
+            {
+                client.onLine(clientComm.reader.readLine());
+            }
+        }
+        server.pump();
+    }
+
+    // Plays sessions over loopback TCP with every game and client served
+    // by a scheduler with the given number of loops. Returns the games per
+    // second.
+    static double measureLoops(int loops, int games, long seed)
+            throws IOException, InterruptedException
+    {
+        RoomScheduler scheduler = new RoomScheduler(loops);
+        int sessions = Math.max(loops, games / GAMES_PER_SESSION);
+        long start = System.nanoTime();
+        new LoopbackSimulation().playOverSockets(scheduler, sessions, seed);
+        long elapsed = System.nanoTime() - start;
+        scheduler.shutdown();
+        return (double) sessions * GAMES_PER_SESSION * 1e9 / elapsed;
+    }
+
+    // Plays GAMES_PER_SESSION games on each of the given number of loopback
+    // TCP connections, with both ends of every connection served by the
+    // scheduler, and waits for all of them. The results of every session
+    // are added to this simulation.
+    public void playOverSockets(RoomScheduler scheduler, int sessions, long seed)
+            throws IOException, InterruptedException
+    {
+        HeadlessServices services = new HeadlessServices();
+        services.scheduler = scheduler;
+        CountDownLatch done = new CountDownLatch(sessions);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open())
+        {
+            serverChannel.bind(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), 0), sessions);
+            for (int i = 0; i < sessions; i++)
+            {
+                ChannelTransport clientTransport = new ChannelTransport(
+                        SocketChannel.open(serverChannel.getLocalAddress()));
+                new HeadlessGame(services).start(
+                        new ChannelTransport(serverChannel.accept()));
+
+                NetComm clientComm = new NetComm();
+                clientComm.connectOutput(clientTransport);
+                RoomScheduler.Room room = scheduler.openRoom();
+                LoopbackSimulation sessionResults = new LoopbackSimulation();
+                SimulatedClient client = new SimulatedClient(sessionResults,
+                        clientComm, seed + i, GAMES_PER_SESSION, () ->
+                {
+                    add(sessionResults);
+                    scheduler.closeRoom(room);
+                    done.countDown();
+                });
+                scheduler.attach(room, clientTransport, client);
+            }
+            done.await();
+        }
+    }
+
+    // The client side of one session. Everything it does is an answer to
+    // a line from the server, so it can be fed by playSession or by the
+    // loop of its room.
+    private static class SimulatedClient implements RoomScheduler.LineListener
+    {
+
+        private final LoopbackSimulation results;
+        private final NetComm netComm;
+        private final SplittableRandom random;
+        private final int games;
+        private final Runnable onDone;
+        private final byte[] board = new byte[9];
+        private boolean clientGoesFirst;
+        private int played;
+        private boolean done;
+
+        SimulatedClient(LoopbackSimulation results, NetComm netComm, long seed,
+                int games, Runnable onDone)
+        {
+            this.results = results;
+            this.netComm = netComm;
+            this.random = new SplittableRandom(seed);
+            this.games = games;
+            this.onDone = onDone;
+        }
+
+        boolean isDone()
+        {
+            return done;
+        }
+
+        @Override
+        public void onLine(String line)
+        {
+            if (done || !netComm.chatLimiter.allows(line))
+            {
+                return;
+            }
+            Scanner sc = new Scanner(line);
+            if (!sc.hasNext())
+            {
+                return;
+            }
+            switch (sc.next())
+            {
+                case "move":
+                    board[sc.nextInt() * 3 + sc.nextInt()] = MctsEngine.PLAYER_ONE;
+                    if (!endGameIfOver())
+                    {
+                        playMove();
+                    }
+                    break;
+                case "playagain":
+                    Arrays.fill(board, MctsEngine.EMPTY);
+                    clientGoesFirst = !clientGoesFirst;
+                    netComm.writer.println("playagain ready");
+                    if (clientGoesFirst)
+                    {
+                        playMove();
+                    }
+                    break;
+            }
+        }
+
+        // The server closing first means the session broke off.
+        @Override
+        public void onClosed()
+        {
+            if (!done)
+            {
+                Logger.getLogger(LoopbackSimulation.class.getName()).log(
+                        Level.WARNING, "The server closed the session after {0} games",
+                        played);
+                finish();
+            }
+        }
+
+        private void playMove()
+        {
+            int cell;
+            do
+            {
+                cell = random.nextInt(9);
+            } while (board[cell] != MctsEngine.EMPTY);
+            board[cell] = MctsEngine.PLAYER_TWO;
+            netComm.writer.println("move " + cell / 3 + " " + cell % 3);
+            endGameIfOver();
+        }
+
+        // Counts a finished game and asks for the next one, or ends the
+        // session after the last.
+        private boolean endGameIfOver()
+        {
+            if (!isOver(board))
+            {
+                return false;
+            }
+            results.count(winnerOf(board));
+            played++;
+            if (played < games)
+            {
+                netComm.writer.println("playagain query");
+            } else
+            {
+                netComm.writer.println("exit");
+                finish();
+            }
+            return true;
+        }
+
+        private void finish()
+        {
+            done = true;
+            onDone.run();
+        }
+    }
+
+    // Adds the results of a session played on another thread.
+    private synchronized void add(LoopbackSimulation session)
+    {
+        serverWins += session.serverWins;
+        clientWins += session.clientWins;
+        draws += session.draws;
+    }
+
+    public synchronized long getGamesPlayed()
+    {
+        return serverWins + clientWins + draws;
+    }
+
+    private void count(int winner)
+    {
+        if (winner == MctsEngine.PLAYER_ONE)
+        {
+            serverWins++;
+        } else if (winner == MctsEngine.PLAYER_TWO)
+        {
+            clientWins++;
+        } else
+        {
+            draws++;
+        }
+    }
+
+    private static int winnerOf(byte[] board)
+    {
+        int[][] lines =
+        {
+            {0, 1, 2}, {3, 4, 5}, {6, 7, 8}, {0, 3, 6},
+            {1, 4, 7}, {2, 5, 8}, {0, 4, 8}, {2, 4, 6}
+        };
+        for (int[] line : lines)
+        {
+            if (board[line[0]] != MctsEngine.EMPTY && board[line[0]] == board[line[1]]
+                    && board[line[1]] == board[line[2]])
+            {
+                return board[line[0]];
+            }
+        }
+        return MctsEngine.EMPTY;
+    }
+
+    private static boolean isOver(byte[] board)
+    {
+        if (winnerOf(board) != MctsEngine.EMPTY)
+        {
+            return true;
+        }
+        for (byte cell : board)
+        {
+            if (cell == MctsEngine.EMPTY)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "server wins " + serverWins + ", client wins " + clientWins
+                + ", draws " + draws;
+    }
+}
+
+// Checks the headless parts of the program against what they promise and
+// prints one line per check. Exits with status 1 if any check fails, so
+// it can gate a build:
+//
+//     java -cp . SelfCheck
+//
+// Like LoopbackSimulation it does not need the JavaFX toolkit, and so it
+// does not cover the GUI handlers either.
+class SelfCheck
+{
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception
+    {
+        // The checks drop chat and move rooms on purpose; only show what
+        // goes wrong.
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        checkBoundedLineReader();
+        checkChatRateLimiter();
+        checkLoopbackTransport();
+        checkZobristHash();
+        checkPositionCache();
+        checkRatingStore();
+        checkMctsEngine();
+        checkLoopbackSimulation();
+        checkGamesOverSockets();
+
+        System.out.println(failures == 0 ? "All checks passed."
+                : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(boolean passed, String what)
+    {
+        System.out.println((passed ? "ok     " : "FAILED ") + what);
+        if (!passed)
+        {
+            failures++;
+        }
+    }
+
+    private static void checkBoundedLineReader() throws IOException
+    {
+        char[] longLine = new char[10 * NetComm.MAX_LINE_LENGTH];
+        Arrays.fill(longLine, 'x');
+        BoundedLineReader reader = new BoundedLineReader(new InputStreamReader(
+                new ByteArrayInputStream((new String(longLine)
+                        + "\r\nnext\n").getBytes())), NetComm.MAX_LINE_LENGTH);
+        check(reader.readLine().length() == NetComm.MAX_LINE_LENGTH + 1,
+                "BoundedLineReader cuts a long line");
+        check("next".equals(reader.readLine()) && reader.readLine() == null,
+                "BoundedLineReader goes on with the next line");
+    }
+
+    private static void checkChatRateLimiter()
+    {
+        ChatRateLimiter limiter = new ChatRateLimiter(3, 0.0);
+        int allowed = 0;
+        for (int i = 0; i < 10; i++)
+        {
+            if (limiter.allows(" \tchat hello"))
+            {
+                allowed++;
+            }
+        }
+        check(allowed == 3 && limiter.getDroppedMessages() == 7,
+                "ChatRateLimiter drops a chat flood, whitespace or not");
+        check(limiter.allows("move 1 1") && limiter.allows("chatter"),
+                "ChatRateLimiter lets other commands through");
+        check(!new ChatRateLimiter().tryAcquire(ChatRateLimiter.MAX_MESSAGE_LENGTH + 1),
+                "ChatRateLimiter drops an oversized message");
+    }
+
+    private static void checkLoopbackTransport() throws Exception
+    {
+        LoopbackTransport[] pair = LoopbackTransport.pair(64);
+        byte[] sent = new byte[10_000];
+        new SplittableRandom(3).nextBytes(sent);
+        Thread writer = new Thread(() ->
+        {
+            try
+            {
+                pair[0].getOutputStream().write(sent);
+                pair[0].close();
+            } catch (IOException ex)
+            {
+                throw new RuntimeException(ex);
+            }
+        });
+        writer.start();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        InputStream in = pair[1].getInputStream();
+        byte[] chunk = new byte[100];
+        for (int n = in.read(chunk); n >= 0; n = in.read(chunk))
+        {
+            received.write(chunk, 0, n);
+        }
+        writer.join();
+        check(Arrays.equals(sent, received.toByteArray()),
+                "LoopbackTransport passes bytes through a small ring buffer");
+    }
+
+    private static void checkZobristHash()
+    {
+        GameState a = new GameState();
+        a.recordMove(0, 0, "X");
+        a.recordMove(1, 1, "O");
+        GameState b = new GameState();
+        b.recordMove(1, 1, "O");
+        b.recordMove(0, 0, "X");
+        GameState swapped = new GameState();
+        swapped.recordMove(0, 0, "O");
+        swapped.recordMove(1, 1, "X");
+        check(a.zobristHash == b.zobristHash && a.zobristHash != swapped.zobristHash,
+                "GameState hashes a board by its marks");
+        a.reset();
+        check(a.zobristHash == 0, "GameState.reset clears the hash");
+    }
+
+    private static void checkPositionCache()
+    {
+        PositionCache cache = new PositionCache(1 << 14);
+        cache.put(42, 7);
+        check(cache.get(42) == 7 && cache.get(43) == PositionCache.NOT_FOUND,
+                "PositionCache returns what was put");
+        int entries = 10 * cache.getCapacity();
+        for (int i = 0; i < entries; i++)
+        {
+            cache.put(1000 + i, i);
+        }
+        int found = 0;
+        boolean valuesMatch = true;
+        for (int i = 0; i < entries; i++)
+        {
+            long value = cache.get(1000 + i);
+            if (value != PositionCache.NOT_FOUND)
+            {
+                found++;
+                valuesMatch &= value == i;
+            }
+        }
+        check(found <= cache.getCapacity() && found > 0 && valuesMatch,
+                "PositionCache stays within its capacity");
+        check(cache.get(1000 + entries - 1) == entries - 1,
+                "PositionCache keeps the newest entry");
+    }
+
+    private static void checkRatingStore() throws IOException
+    {
+        RatingStore store = new RatingStore(4);
+        long[][] players = new long[6][];
+        for (int i = 0; i < players.length; i++)
+        {
+            players[i] = store.registerPlayer();
+        }
+        check(store.getNumberOfRatedPlayers() == 0 && store.topPlayers(10).length == 0
+                && store.rankOf(players[0][0]) == -1,
+                "RatingStore does not rank players before their first game");
+
+        // Player i wins i games, so the last one is the best.
+        for (int i = 0; i < players.length - 1; i++)
+        {
+            store.recordGameAgainstHouse(players[i][0], RatingStore.OUTCOME_DRAW);
+            for (int game = 0; game < i; game++)
+            {
+                store.recordGameAgainstHouse(players[i][0], RatingStore.OUTCOME_WIN);
+            }
+        }
+        long[] top = store.topPlayers(10);
+        boolean ordered = top.length == players.length - 1;
+        for (int i = 0; ordered && i < top.length; i++)
+        {
+            ordered = top[i] == players[players.length - 2 - i][0]
+                    && store.rankOf(top[i]) == i + 1;
+        }
+        check(ordered, "RatingStore orders topPlayers and rankOf by rating");
+        check(store.getHouseRating() < RatingStore.INITIAL_RATING,
+                "RatingStore moves the house rating");
+
+        store.recordGameAgainstHouse(9999, RatingStore.OUTCOME_WIN);
+        check(store.getNumberOfPlayers() == players.length
+                && !store.authenticate(9999, 0),
+                "RatingStore ignores ids it did not hand out");
+        check(store.authenticate(players[0][0], players[0][1])
+                && !store.authenticate(players[0][0], players[0][1] + 1),
+                "RatingStore checks tokens");
+
+        Path file = Files.createTempFile("ratings", ".bin");
+        try
+        {
+            store.snapshot(file);
+            RatingStore loaded = RatingStore.load(file);
+            boolean same = Arrays.equals(top, loaded.topPlayers(10))
+                    && loaded.getNumberOfPlayers() == store.getNumberOfPlayers()
+                    && loaded.getHouseRating() == store.getHouseRating();
+            for (long[] player : players)
+            {
+                same &= loaded.getRating(player[0]) == store.getRating(player[0])
+                        && loaded.rankOf(player[0]) == store.rankOf(player[0])
+                        && loaded.authenticate(player[0], player[1]);
+            }
+            long[] next = loaded.registerPlayer();
+            same &= next[0] > players[players.length - 1][0];
+            check(same, "RatingStore snapshots round trip");
+        } finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void checkMctsEngine() throws Exception
+    {
+        MctsEngine engine = new MctsEngine(3, 3, 3, 2);
+        try
+        {
+            byte x = MctsEngine.PLAYER_ONE;
+            byte o = MctsEngine.PLAYER_TWO;
+            byte[] canWin =
+            {
+                x, x, 0, o, o, 0, 0, 0, 0
+            };
+            check(engine.search(canWin, x, 50).get().move == 2,
+                    "MctsEngine takes a winning move");
+            byte[] mustBlock =
+            {
+                x, 0, 0, o, o, 0, 0, 0, x
+            };
+            check(engine.search(mustBlock, x, 50).get().move == 5,
+                    "MctsEngine blocks a losing threat");
+            byte[] full =
+            {
+                x, o, x, x, o, o, o, x, x
+            };
+            check(engine.search(full, x, 10).get().move == -1,
+                    "MctsEngine returns -1 for a full board");
+            check(engine.expectedPlayouts(10) > 0,
+                    "MctsEngine keeps track of its playout rate");
+        } finally
+        {
+            engine.shutdown();
+        }
+    }
+
+    private static void checkLoopbackSimulation() throws IOException
+    {
+        LoopbackSimulation first = new LoopbackSimulation();
+        first.playSession(500, 7);
+        LoopbackSimulation second = new LoopbackSimulation();
+        second.playSession(500, 7);
+        check(first.getGamesPlayed() == 500
+                && first.toString().equals(second.toString()),
+                "LoopbackSimulation plays the same games for the same seed");
+    }
+
+    // Plays games over TCP through a scheduler while rooms keep being
+    // moved between loops, and checks that no session breaks off.
+    private static void checkGamesOverSockets() throws Exception
+    {
+        RoomScheduler scheduler = new RoomScheduler(4);
+        AtomicBoolean playing = new AtomicBoolean(true);
+        Thread rebalancer = new Thread(() ->
+        {
+            while (playing.get())
+            {
+                scheduler.rebalance();
+                try
+                {
+                    Thread.sleep(2);
+                } catch (InterruptedException ex)
+                {
+                    return;
+                }
+            }
+        });
+        rebalancer.start();
+        LoopbackSimulation simulation = new LoopbackSimulation();
+        int sessions = 40;
+        try
+        {
+            simulation.playOverSockets(scheduler, sessions, 1);
+        } finally
+        {
+            playing.set(false);
+            rebalancer.join();
+            scheduler.shutdown();
+        }
+        check(simulation.getGamesPlayed()
+                == (long) sessions * LoopbackSimulation.GAMES_PER_SESSION,
+                "Games over sockets all finish while " + scheduler.getRoomsMoved()
+                + " rooms are moved");
+    }
+}
+
+// Spreads game rooms over a fixed number of single threaded event loops.
+// A room is pinned to one loop, so all of its commands run in order on
+// the same thread and the game state needs no locks. Work for a room is
+// handed to its loop with post().
+//
+// Each loop also owns a Selector. A room attached to a ChannelTransport
+// has its socket read by its loop, so serving a connection does not
+// need a thread of its own and the number of threads stays fixed.
+//
+// Rooms start on the loop picked by hashing their id. rebalance() looks
+// at how many tasks and lines each room handled since the previous call
+// and moves busy rooms from the busiest loop to the least busy one, as
+// long as that narrows the gap between them. A room is only moved when
+// nothing else of it is queued, so its commands are never reordered.
+class RoomScheduler
+{
+
+    // Receives what the loop reads from a room's channel.
+    interface LineListener
+    {
+
+        void onLine(String line);
+
+        void onClosed();
+    }
+
+    // A game room. The monitor only guards which loop the room belongs
+    // to and how many of its tasks are still queued there.
+    static class Room
+    {
+
+        final int id;
+        private int loop;
+        private int pending;
+        private final AtomicLong tasksRun = new AtomicLong();
+        // Only used on the room's loop.
+        private ChannelTransport channel;
+
+        Room(int id, int loop)
+        {
+            this.id = id;
+            this.loop = loop;
+        }
+    }
+
+    // A thread running the tasks posted to it and the channels
+    // registered with its selector.
+    private static class EventLoop implements Runnable
+    {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private volatile boolean running = true;
+
+        EventLoop(String name) throws IOException
+        {
+            selector = Selector.open();
+            Thread t = new Thread(this, name);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+            if (wakeupPending.compareAndSet(false, true))
+            {
+                selector.wakeup();
+            }
+        }
+
+        // Makes the loop return after what it is running now and close
+        // its selector. Tasks still queued are dropped.
+        void stop()
+        {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                runLoop();
+            } finally
+            {
+                try
+                {
+                    selector.close();
+                } catch (IOException ex)
+                {
+                    Logger.getLogger(RoomScheduler.class.getName()).
+                            log(Level.WARNING, null, ex);
+                }
+            }
+        }
+
+        private void runLoop()
+        {
+            while (running)
+            {
+                try
+                {
+                    selector.select();
+                } catch (IOException ex)
+                {
+                    Logger.getLogger(RoomScheduler.class.getName()).
+                            log(Level.SEVERE, null, ex);
+                    return;
+                }
+                if (!running)
+                {
+                    return;
+                }
+
+                wakeupPending.set(false);
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                {
+                    runSafely(task);
+                }
+
+                for (SelectionKey key : selector.selectedKeys())
+                {
+                    if (key.isValid())
+                    {
+                        runSafely(((ChannelTransport) key.attachment())::handleReady);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        // A failing task must not take the loop, and every other room on
+        // it, down with it.
+        private static void runSafely(Runnable task)
+        {
+            try
+            {
+                task.run();
+            } catch (RuntimeException ex)
+            {
+                Logger.getLogger(RoomScheduler.class.getName()).
+                        log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private final EventLoop[] loops;
+    private final Map<Integer, Room> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRoomId = new AtomicInteger();
+    private final AtomicLong roomsMoved = new AtomicLong();
+    private ScheduledExecutorService rebalancer;
+
+    public RoomScheduler(int numberOfLoops) throws IOException
+    {
+        loops = new EventLoop[numberOfLoops];
+        for (int i = 0; i < numberOfLoops; i++)
+        {
+            loops[i] = new EventLoop("room-loop-" + i);
+        }
+    }
+
+    public Room openRoom()
+    {
+        int id = nextRoomId.getAndIncrement();
+        Room room = new Room(id, loopFor(id));
+        rooms.put(id, room);
+        return room;
+    }
+
+    public void closeRoom(Room room)
+    {
+        rooms.remove(room.id);
+    }
+
+    // Runs the task on the loop that owns the room.
+    public void post(Room room, Runnable task)
+    {
+        int loop;
+        synchronized (room)
+        {
+            room.pending++;
+            loop = room.loop;
+        }
+        loops[loop].execute(() ->
+        {
+            try
+            {
+                task.run();
+            } finally
+            {
+                room.tasksRun.incrementAndGet();
+                synchronized (room)
+                {
+                    room.pending--;
+                }
+            }
+        });
+    }
+
+    // Lets the room's loop read the channel. Every line read is passed to
+    // the listener on that loop.
+    public void attach(Room room, ChannelTransport channel, LineListener listener)
+    {
+        post(room, () ->
+        {
+            room.channel = channel;
+            channel.register(selectorOf(room), new LineListener()
+            {
+                @Override
+                public void onLine(String line)
+                {
+                    room.tasksRun.incrementAndGet();
+                    listener.onLine(line);
+                }
+
+                @Override
+                public void onClosed()
+                {
+                    listener.onClosed();
+                }
+            });
+        });
+    }
+
+    // Moves busy rooms from the busiest loop to the least busy one as
+    // long as that narrows the gap between them.
+    public void rebalance()
+    {
+        long[] load = new long[loops.length];
+        Map<Room, Long> roomLoad = new HashMap<>();
+        for (Room room : rooms.values())
+        {
+            long tasks = room.tasksRun.getAndSet(0);
+            roomLoad.put(room, tasks);
+            synchronized (room)
+            {
+                load[room.loop] += tasks;
+            }
+        }
+
+        int busiest = 0;
+        int idlest = 0;
+        for (int i = 1; i < loops.length; i++)
+        {
+            if (load[i] > load[busiest])
+            {
+                busiest = i;
+            }
+            if (load[i] < load[idlest])
+            {
+                idlest = i;
+            }
+        }
+
+        int moves = 0;
+        for (Map.Entry<Room, Long> entry : roomLoad.entrySet())
+        {
+            Room room = entry.getKey();
+            long tasks = entry.getValue();
+            // Moving a room without load changes nothing, and moving one
+            // with more load than the gap only swaps the two loops.
+            if (tasks == 0 || load[busiest] - load[idlest] <= tasks)
+            {
+                continue;
+            }
+            synchronized (room)
+            {
+                if (room.loop != busiest || room.pending > 0)
+                {
+                    continue;
+                }
+            }
+            int target = idlest;
+            post(room, () -> move(room, target));
+            load[busiest] -= tasks;
+            load[idlest] += tasks;
+            moves++;
+        }
+
+        if (moves > 0)
+        {
+            Logger.getLogger(RoomScheduler.class.getName()).log(Level.INFO,
+                    "Moving {0} rooms from loop {1} to loop {2}, {3} moved so far.",
+                    new Object[]
+                    {
+                        moves, busiest, idlest, roomsMoved.get()
+                    });
+        }
+    }
+
+    // Runs on the room's current loop. Gives up if more work for the room
+    // was queued there in the meantime.
+    private void move(Room room, int target)
+    {
+        synchronized (room)
+        {
+            if (room.pending > 1 || room.loop == target)
+            {
+                return;
+            }
+            room.loop = target;
+        }
+        roomsMoved.incrementAndGet();
+
+        ChannelTransport channel = room.channel;
+        if (channel != null)
+        {
+            channel.unregister();
+            // Goes to the new loop, since the room already belongs to it.
+            post(room, () -> channel.register(selectorOf(room), null));
+        }
+    }
+
+    private Selector selectorOf(Room room)
+    {
+        synchronized (room)
+        {
+            return loops[room.loop].selector;
+        }
+    }
+
+    public void startRebalancing(long periodSeconds)
+    {
+        rebalancer = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread t = new Thread(r, "room-rebalancer");
+            t.setDaemon(true);
+            return t;
+        });
+        rebalancer.scheduleAtFixedRate(this::rebalance, periodSeconds,
+                periodSeconds, TimeUnit.SECONDS);
+    }
+
+    // Stops the rebalancer and every loop and closes their selectors.
+    // Channels of rooms that are still open stay open; closing them is
+    // up to whoever opened them.
+    public void shutdown()
+    {
+        if (rebalancer != null)
+        {
+            rebalancer.shutdownNow();
+        }
+        for (EventLoop loop : loops)
+        {
+            loop.stop();
+        }
+    }
+
+    public int getNumberOfLoops()
+    {
+        return loops.length;
+    }
+
+    public int getNumberOfRooms()
+    {
+        return rooms.size();
+    }
+
+    public long getRoomsMoved()
+    {
+        return roomsMoved.get();
+    }
+
+    private int loopFor(int roomId)
+    {
+        int h = roomId * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % loops.length;
+    }
+}
+
+// Monte Carlo tree search for k-in-a-row games on a width x height board.
+// Cells are numbered row * width + col and hold EMPTY, PLAYER_ONE or
+// PLAYER_TWO. A search runs on the engine's own worker threads and never
+// on the caller's thread, so it can be started from the FX thread or a
+// room loop. Searches are served in the order they are started, and the
+// time budget of each tree only starts once a worker picks it up, so a
+// search that had to wait still gets its full budget. How long it waited
+// is part of its result.
+//
+// Searches use root parallelism: every worker grows its own tree from
+// the same position and the visit counts of the root's children are
+// added up at the end. Trees keep their nodes in parallel primitive
+// arrays that are allocated once per worker and reused, and rollouts
+// only use scratch arrays in the tree, so a running search does not
+// allocate.
+class MctsEngine
+{
+
+    public static final byte EMPTY = 0;
+    public static final byte PLAYER_ONE = 1;
+    public static final byte PLAYER_TWO = 2;
+
+    public static final int DEFAULT_NODES_PER_TREE = 1 << 18;
+    private static final double EXPLORATION = Math.sqrt(2.0);
+
+    // The outcome of one search. elapsedNanos runs from the call to
+    // search() to the result and includes queuedNanos, the time until
+    // the last of its trees got a worker.
+    static class SearchResult
+    {
+
+        final int move;
+        final long playouts;
+        final long elapsedNanos;
+        final long queuedNanos;
+
+        SearchResult(int move, long playouts, long elapsedNanos, long queuedNanos)
+        {
+            this.move = move;
+            this.playouts = playouts;
+            this.elapsedNanos = elapsedNanos;
+            this.queuedNanos = queuedNanos;
+        }
+
+        double playoutsPerSecond()
+        {
+            long searchNanos = elapsedNanos - queuedNanos;
+            return searchNanos <= 0 ? 0 : playouts * 1e9 / searchNanos;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int winLength;
+    private final int numberOfCells;
+    private final ExecutorService workers;
+    private final BlockingQueue<SearchTree> trees;
+    private final int numberOfTrees;
+
+    // Totals over all searches, for expectedPlayouts and the periodic
+    // report.
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder totalPlayouts = new LongAdder();
+    private final LongAdder totalSearchNanos = new LongAdder();
+    private final LongAdder totalQueuedNanos = new LongAdder();
+    private ScheduledExecutorService reporter;
+
+    public MctsEngine(int width, int height, int winLength, int threads)
+    {
+        this(width, height, winLength, threads, DEFAULT_NODES_PER_TREE);
+    }
+
+    public MctsEngine(int width, int height, int winLength, int threads,
+            int nodesPerTree)
+    {
+        this.width = width;
+        this.height = height;
+        this.winLength = winLength;
+        this.numberOfCells = width * height;
+        this.numberOfTrees = threads;
+        this.trees = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++)
+        {
+            trees.add(new SearchTree(nodesPerTree, i));
+        }
+        this.workers = Executors.newFixedThreadPool(threads, r ->
+        {
+            Thread t = new Thread(r, "mcts-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Searches the position for budgetMillis and completes with the move
+    // for playerToMove, or -1 if the board is full.
+    public CompletableFuture<SearchResult> search(byte[] board,
+            byte playerToMove, long budgetMillis)
+    {
+        byte[] root = board.clone();
+        long start = System.nanoTime();
+        long budgetNanos = budgetMillis * 1_000_000L;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<long[]>[] parts = new CompletableFuture[numberOfTrees];
+        for (int i = 0; i < numberOfTrees; i++)
+        {
+            parts[i] = CompletableFuture.supplyAsync(
+                    () -> runTree(root, playerToMove, budgetNanos), workers);
+        }
+
+        return CompletableFuture.allOf(parts).thenApply(ignored ->
+        {
+            // After the visit counts each part holds that tree's playout
+            // count and the time it started.
+            long[] visits = new long[numberOfCells];
+            long playouts = 0;
+            long lastStart = start;
+            for (CompletableFuture<long[]> part : parts)
+            {
+                long[] counts = part.join();
+                for (int cell = 0; cell < numberOfCells; cell++)
+                {
+                    visits[cell] += counts[cell];
+                }
+                playouts += counts[numberOfCells];
+                lastStart = Math.max(lastStart, counts[numberOfCells + 1]);
+            }
+
+            int best = -1;
+            for (int cell = 0; cell < numberOfCells; cell++)
+            {
+                if (root[cell] == EMPTY
+                        && (best < 0 || visits[cell] > visits[best]))
+                {
+                    best = cell;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            long queued = lastStart - start;
+            searches.increment();
+            totalPlayouts.add(playouts);
+            totalSearchNanos.add(elapsed - queued);
+            totalQueuedNanos.add(queued);
+            return new SearchResult(best, playouts, elapsed, queued);
+        });
+    }
+
+    // Playouts a search with the given budget can expect, going by the
+    // searches run so far. 0 until the first search has finished.
+    public long expectedPlayouts(long budgetMillis)
+    {
+        long nanos = totalSearchNanos.sum();
+        return nanos == 0 ? 0
+                : (long) (totalPlayouts.sum() * (budgetMillis * 1e6 / nanos));
+    }
+
+    // Logs the number of searches, the playout rate and the average wait
+    // for a worker every periodSeconds.
+    public void startReporting(long periodSeconds)
+    {
+        reporter = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread t = new Thread(r, "mcts-report");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] last = new long[4];
+        reporter.scheduleAtFixedRate(() ->
+        {
+            long[] now =
+            {
+                searches.sum(), totalPlayouts.sum(), totalSearchNanos.sum(),
+                totalQueuedNanos.sum()
+            };
+            long count = now[0] - last[0];
+            if (count > 0)
+            {
+                Logger.getLogger(MctsEngine.class.getName()).log(Level.INFO,
+                        "{0} searches, {1} playouts/s, {2} ms average wait",
+                        new Object[]
+                        {
+                            count,
+                            (long) ((now[1] - last[1]) * 1e9
+                            / Math.max(1, now[2] - last[2])),
+                            (now[3] - last[3]) / count / 1_000_000
+                        });
+            }
+            System.arraycopy(now, 0, last, 0, now.length);
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void shutdown()
+    {
+        if (reporter != null)
+        {
+            reporter.shutdownNow();
+        }
+        workers.shutdownNow();
+    }
+
+    // Runs on a worker. The budget starts now rather than when the
+    // search was started, so time spent queued is not taken from it.
+    private long[] runTree(byte[] root, byte playerToMove, long budgetNanos)
+    {
+        long start = System.nanoTime();
+        SearchTree tree = trees.poll();
+        try
+        {
+            long[] counts = tree.search(root, playerToMove, start + budgetNanos);
+            counts[numberOfCells + 1] = start;
+            return counts;
+        } finally
+        {
+            trees.add(tree);
+        }
+    }
+
+    private static byte other(byte player)
+    {
+        return player == PLAYER_ONE ? PLAYER_TWO : PLAYER_ONE;
+    }
+
+    // True if the stone just placed on cell completes a line of
+    // winLength for player.
+    private boolean isWin(byte[] board, int cell, byte player)
+    {
+        int row = cell / width;
+        int col = cell % width;
+        return lineLength(board, row, col, 0, 1, player) >= winLength
+                || lineLength(board, row, col, 1, 0, player) >= winLength
+                || lineLength(board, row, col, 1, 1, player) >= winLength
+                || lineLength(board, row, col, 1, -1, player) >= winLength;
+    }
+
+    private int lineLength(byte[] board, int row, int col, int dr, int dc,
+            byte player)
+    {
+        int length = 1;
+        for (int r = row + dr, c = col + dc;
+                r >= 0 && r < height && c >= 0 && c < width
+                && board[r * width + c] == player; r += dr, c += dc)
+        {
+            length++;
+        }
+        for (int r = row - dr, c = col - dc;
+                r >= 0 && r < height && c >= 0 && c < width
+                && board[r * width + c] == player; r -= dr, c -= dc)
+        {
+            length++;
+        }
+        return length;
+    }
+
+    // One worker's search tree. Node 0 is the root. The children of a
+    // node are stored next to each other starting at firstChild.
+    private class SearchTree
+    {
+
+        private final int capacity;
+        private final int[] move;
+        private final int[] parent;
+        private final int[] firstChild;
+        private final int[] numberOfChildren;
+        private final int[] visits;
+        private final float[] wins;
+        // The player whose move led to the node.
+        private final byte[] mover;
+        private int size;
+
+        private final byte[] scratchBoard = new byte[numberOfCells];
+        private final int[] freeCells = new int[numberOfCells];
+        private long random;
+
+        SearchTree(int capacity, int seed)
+        {
+            this.capacity = capacity;
+            move = new int[capacity];
+            parent = new int[capacity];
+            firstChild = new int[capacity];
+            numberOfChildren = new int[capacity];
+            visits = new int[capacity];
+            wins = new float[capacity];
+            mover = new byte[capacity];
+            random = 0x9E3779B97F4A7C15L * (seed + 1);
+        }
+
+        // Runs playouts until the deadline. Returns the visit count of
+        // every root move, followed by the number of playouts and a free
+        // slot for runTree.
+        long[] search(byte[] root, byte playerToMove, long deadline)
+        {
+            int rootFilled = 0;
+            for (byte cell : root)
+            {
+                if (cell != EMPTY)
+                {
+                    rootFilled++;
+                }
+            }
+
+            size = 1;
+            move[0] = -1;
+            parent[0] = -1;
+            firstChild[0] = -1;
+            numberOfChildren[0] = 0;
+            visits[0] = 0;
+            wins[0] = 0;
+            mover[0] = other(playerToMove);
+
+            long playouts = 0;
+            if (rootFilled < numberOfCells)
+            {
+                do
+                {
+                    // Checking the clock every few playouts keeps it off
+                    // the hot path.
+                    for (int i = 0; i < 16; i++)
+                    {
+                        playout(root, playerToMove, rootFilled);
+                        playouts++;
+                    }
+                } while (System.nanoTime() < deadline);
+            }
+
+            long[] result = new long[numberOfCells + 2];
+            for (int c = firstChild[0]; c >= 0
+                    && c < firstChild[0] + numberOfChildren[0]; c++)
+            {
+                result[move[c]] = visits[c];
+            }
+            result[numberOfCells] = playouts;
+            return result;
+        }
+
+        private void playout(byte[] root, byte playerToMove, int filled)
+        {
+            byte[] board = scratchBoard;
+            System.arraycopy(root, 0, board, 0, numberOfCells);
+            byte player = playerToMove;
+            int node = 0;
+            int winner = -1;
+
+            while (winner < 0)
+            {
+                if (firstChild[node] < 0)
+                {
+                    if ((node != 0 && visits[node] == 0)
+                            || !expand(node, board, player))
+                    {
+                        break;
+                    }
+                }
+                node = select(node);
+                board[move[node]] = player;
+                filled++;
+                if (isWin(board, move[node], player))
+                {
+                    winner = player;
+                } else if (filled == numberOfCells)
+                {
+                    winner = EMPTY;
+                }
+                player = other(player);
+            }
+
+            if (winner < 0)
+            {
+                winner = rollout(board, player);
+            }
+
+            for (int n = node; n >= 0; n = parent[n])
+            {
+                visits[n]++;
+                if (mover[n] == winner)
+                {
+                    wins[n] += 1.0f;
+                } else if (winner == EMPTY)
+                {
+                    wins[n] += 0.5f;
+                }
+            }
+        }
+
+        // Adds a child for every free cell. Returns false if the tree is
+        // full.
+        private boolean expand(int node, byte[] board, byte player)
+        {
+            int free = numberOfCells - countFilled(board);
+            if (size + free > capacity)
+            {
+                return false;
+            }
+            int first = size;
+            for (int cell = 0; cell < numberOfCells; cell++)
+            {
+                if (board[cell] == EMPTY)
+                {
+                    move[size] = cell;
+                    parent[size] = node;
+                    firstChild[size] = -1;
+                    numberOfChildren[size] = 0;
+                    visits[size] = 0;
+                    wins[size] = 0;
+                    mover[size] = player;
+                    size++;
+                }
+            }
+            firstChild[node] = first;
+            numberOfChildren[node] = size - first;
+            return true;
+        }
+
+        private int countFilled(byte[] board)
+        {
+            int filled = 0;
+            for (byte cell : board)
+            {
+                if (cell != EMPTY)
+                {
+                    filled++;
+                }
+            }
+            return filled;
+        }
+
+        // Picks the child with the best UCT score; unvisited children
+        // come first.
+        private int select(int node)
+        {
+            double logVisits = Math.log(Math.max(1, visits[node]));
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            int end = firstChild[node] + numberOfChildren[node];
+            for (int c = firstChild[node]; c < end; c++)
+            {
+                if (visits[c] == 0)
+                {
+                    return c;
+                }
+                double score = wins[c] / visits[c]
+                        + EXPLORATION * Math.sqrt(logVisits / visits[c]);
+                if (score > bestScore)
+                {
+                    bestScore = score;
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        // Plays random moves until the game ends. Returns the winner, or
+        // EMPTY for a draw.
+        private int rollout(byte[] board, byte player)
+        {
+            int free = 0;
+            for (int cell = 0; cell < numberOfCells; cell++)
+            {
+                if (board[cell] == EMPTY)
+                {
+                    freeCells[free++] = cell;
+                }
+            }
+
+            while (free > 0)
+            {
+                int pick = nextInt(free);
+                int cell = freeCells[pick];
+                freeCells[pick] = freeCells[--free];
+                board[cell] = player;
+                if (isWin(board, cell, player))
+                {
+                    return player;
+                }
+                player = other(player);
+            }
+            return EMPTY;
+        }
+
+        // xorshift64, so rollouts need no Random object.
+        private int nextInt(int bound)
+        {
+            random ^= random << 13;
+            random ^= random >>> 7;
+            random ^= random << 17;
+            return (int) ((random >>> 33) % bound);
+        }
+    }
+}
+
+// Keeps stats and Elo ratings for every player that finished a game on
+// this server. Players are identified by a long id. registerPlayer hands
+// out a new id together with a secret token, and a client has to show
+// that token again through authenticate before its games count.
+//
+// Games against the server itself are rated against a house rating that
+// is kept apart from the players, so the server never shows up in
+// topPlayers or rankOf. Players only enter the rating lists with their
+// first finished game, so ids that were handed out but never used do not
+// crowd the leaderboard.
+//
+// Player records live in parallel primitive arrays and are found
+// through an open addressing hash index, so there is no object per
+// player. Ratings are whole numbers below MAX_RATING. Every rating has a
+// doubly linked list of the players holding it and a Fenwick tree
+// counts players per rating, which makes rankOf a logarithmic query and
+// lets topPlayers walk down from the highest rating.
+//
+// Snapshots copy the arrays under the lock and write them to disk on a
+// background thread in a small binary format. load() reads one back.
+class RatingStore
+{
+
+    public static final int INITIAL_RATING = 1200;
+    public static final int MAX_RATING = 4000;
+    public static final int K_FACTOR = 32;
+
+    public static final int OUTCOME_WIN = 1;
+    public static final int OUTCOME_LOSS = -1;
+    public static final int OUTCOME_DRAW = 0;
+
+    private static final int SNAPSHOT_MAGIC = 0x54545452;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+    // Player records, indexed by slot.
+    private long[] ids;
+    private long[] tokens;
+    private int[] ratings;
+    private int[] wins;
+    private int[] losses;
+    private int[] draws;
+    private int[] nextWithRating;
+    private int[] previousWithRating;
+    private int size;
+
+    // Hash index from player id to slot.
+    private long[] indexKeys;
+    private int[] indexSlots;
+
+    // Players per rating.
+    private final int[] firstWithRating = new int[MAX_RATING];
+    private final int[] ratingCounts = new int[MAX_RATING + 1];
+
+    private long nextPlayerId = 1;
+    private int houseRating = INITIAL_RATING;
+    private final SecureRandom tokenSource = new SecureRandom();
+
+    private ScheduledExecutorService snapshotter;
+    // Keeps the periodic snapshot and a final one at shutdown from
+    // writing the same file at once.
+    private final Object snapshotLock = new Object();
+
+    public RatingStore()
+    {
+        this(1024);
+    }
+
+    public RatingStore(int expectedPlayers)
+    {
+        int capacity = Math.max(16, expectedPlayers);
+        ids = new long[capacity];
+        tokens = new long[capacity];
+        ratings = new int[capacity];
+        wins = new int[capacity];
+        losses = new int[capacity];
+        draws = new int[capacity];
+        nextWithRating = new int[capacity];
+        previousWithRating = new int[capacity];
+        indexKeys = new long[Integer.highestOneBit(capacity * 2 - 1) * 2];
+        Arrays.fill(indexKeys, EMPTY_KEY);
+        indexSlots = new int[indexKeys.length];
+        Arrays.fill(firstWithRating, -1);
+    }
+
+    // Adds a new player. Returns {id, token}.
+    public synchronized long[] registerPlayer()
+    {
+        long id = nextPlayerId;
+        int slot = addPlayer(id);
+        tokens[slot] = tokenSource.nextLong();
+        return new long[]
+        {
+            id, tokens[slot]
+        };
+    }
+
+    // True if token is the one handed out with the player's id.
+    public synchronized boolean authenticate(long playerId, long token)
+    {
+        int slot = find(playerId);
+        return slot >= 0 && tokens[slot] == token;
+    }
+
+    // Records a finished game between a player and the server. outcome is
+    // OUTCOME_WIN, OUTCOME_LOSS or OUTCOME_DRAW as seen by the player.
+    // Games of ids that registerPlayer did not hand out are ignored.
+    public synchronized void recordGameAgainstHouse(long playerId, int outcome)
+    {
+        int slot = find(playerId);
+        if (slot < 0)
+        {
+            return;
+        }
+
+        int change = ratingChange(ratings[slot], houseRating, outcome);
+        setRating(slot, ratings[slot] + change);
+        houseRating -= change;
+        countResult(slot, outcome);
+    }
+
+    public synchronized int getHouseRating()
+    {
+        return houseRating;
+    }
+
+    private static int ratingChange(int rating, int opponentRating, int outcome)
+    {
+        double expected = 1.0 / (1.0 + Math.pow(10.0,
+                (opponentRating - rating) / 400.0));
+        double score = outcome == OUTCOME_WIN ? 1.0
+                : outcome == OUTCOME_LOSS ? 0.0 : 0.5;
+        return (int) Math.round(K_FACTOR * (score - expected));
+    }
+
+    private void countResult(int slot, int outcome)
+    {
+        if (outcome == OUTCOME_WIN)
+        {
+            wins[slot]++;
+        } else if (outcome == OUTCOME_LOSS)
+        {
+            losses[slot]++;
+        } else
+        {
+            draws[slot]++;
+        }
+    }
+
+    public synchronized int getRating(long playerId)
+    {
+        int slot = find(playerId);
+        return slot < 0 ? INITIAL_RATING : ratings[slot];
+    }
+
+    // Returns {wins, losses, draws}, or null for an unknown player.
+    public synchronized int[] getStats(long playerId)
+    {
+        int slot = find(playerId);
+        if (slot < 0)
+        {
+            return null;
+        }
+        return new int[]
+        {
+            wins[slot], losses[slot], draws[slot]
+        };
+    }
+
+    // 1 for the best player. Players with the same rating share a rank.
+    // Returns -1 for an unknown player or one without a finished game.
+    public synchronized int rankOf(long playerId)
+    {
+        int slot = find(playerId);
+        if (slot < 0 || !hasPlayed(slot))
+        {
+            return -1;
+        }
+        return countAtOrBelow(MAX_RATING - 1) - countAtOrBelow(ratings[slot]) + 1;
+    }
+
+    // Ids of the n best rated players, best first.
+    public synchronized long[] topPlayers(int n)
+    {
+        long[] top = new long[Math.min(n, countAtOrBelow(MAX_RATING - 1))];
+        int found = 0;
+        for (int rating = MAX_RATING - 1; rating >= 0 && found < top.length; rating--)
+        {
+            for (int slot = firstWithRating[rating]; slot >= 0
+                    && found < top.length; slot = nextWithRating[slot])
+            {
+                top[found++] = ids[slot];
+            }
         }
+        return top;
+    }
 
+    public synchronized int getNumberOfPlayers()
+    {
+        return size;
     }
 
-    // Will be posted to the GUI thread to update GUI and program variables.
-    // Make sure all received protocol messaages are handled appropriately
-    // and that local GUI.  game state, and status bar are correctly updated.
+    // Players with at least one finished game, the ones that are ranked.
+    public synchronized int getNumberOfRatedPlayers()
+    {
+        return countAtOrBelow(MAX_RATING - 1);
+    }
 
-    private void handleRemote(String cmd) throws IOException
+    // Writes a snapshot every periodSeconds.
+    public void startSnapshots(Path file, long periodSeconds)
     {
-        Scanner sc = new Scanner(cmd);
-        String opcode = sc.next();
-        switch (opcode)
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r ->
         {
-            case "chat":
-                String chatMessage = " ";
-                while (sc.hasNext())
+            Thread t = new Thread(r, "rating-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(() ->
+        {
+            try
+            {
+                snapshot(file);
+            } catch (IOException ex)
+            {
+                Logger.getLogger(RatingStore.class.getName()).
+                        log(Level.WARNING, null, ex);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    // Writes the current records to file. Only the copy of the arrays
+    // holds the lock; the file is written to a temporary file first and
+    // then moved into place.
+    public void snapshot(Path file) throws IOException
+    {
+        long[] idsCopy;
+        long[] tokensCopy;
+        int[] ratingsCopy;
+        int[] winsCopy;
+        int[] lossesCopy;
+        int[] drawsCopy;
+        int count;
+        int houseRatingCopy;
+        long nextPlayerIdCopy;
+        synchronized (this)
+        {
+            count = size;
+            houseRatingCopy = houseRating;
+            nextPlayerIdCopy = nextPlayerId;
+            idsCopy = Arrays.copyOf(ids, count);
+            tokensCopy = Arrays.copyOf(tokens, count);
+            ratingsCopy = Arrays.copyOf(ratings, count);
+            winsCopy = Arrays.copyOf(wins, count);
+            lossesCopy = Arrays.copyOf(losses, count);
+            drawsCopy = Arrays.copyOf(draws, count);
+        }
+
+        synchronized (snapshotLock)
+        {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp), 1 << 16)))
+            {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(count);
+                out.writeInt(houseRatingCopy);
+                out.writeLong(nextPlayerIdCopy);
+                for (int i = 0; i < count; i++)
                 {
-                    chatMessage += sc.next() + " ";
+                    out.writeLong(idsCopy[i]);
+                    out.writeLong(tokensCopy[i]);
+                    out.writeShort(ratingsCopy[i]);
+                    out.writeInt(winsCopy[i]);
+                    out.writeInt(lossesCopy[i]);
+                    out.writeInt(drawsCopy[i]);
                 }
-                chatHistoryTArea.appendText(remotePlayerId+ "> "
-                        +chatMessage + "\n");
-                System.out.println(remotePlayerId);
-                break;
-            case "move":
-                int row = sc.nextInt();
-                int col = sc.nextInt();
-                processMove(row, col);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
 
-                break;
-            case "exit":
-                InformationBox end = new InformationBox("Tic Tac Toe", 
-                        "Opponent has quit.");
-                end.showAndWait();
-                Platform.exit();
-                
-                break;
-            case "playagain":
-                String playAgain = sc.next();
-                switch (playAgain)
+    // Reads a snapshot written by snapshot().
+    public static RatingStore load(Path file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file), 1 << 16)))
+        {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+            {
+                throw new IOException("Not a rating snapshot: " + file);
+            }
+            int count = in.readInt();
+            RatingStore store = new RatingStore(count);
+            store.houseRating = in.readInt();
+            store.nextPlayerId = in.readLong();
+            for (int i = 0; i < count; i++)
+            {
+                int slot = store.addPlayer(in.readLong());
+                store.tokens[slot] = in.readLong();
+                store.ratings[slot] = in.readShort();
+                store.wins[slot] = in.readInt();
+                store.losses[slot] = in.readInt();
+                store.draws[slot] = in.readInt();
+                if (store.hasPlayed(slot))
                 {
-                    case "consent":
-                        MessageBox play = new MessageBox("Tic Tac Toe",
-                                "Opponent has consented to a new game.");
-                        play.showAndWait();
-
-                        if (play.returnValue == 1)
-                        {
+                    store.linkRating(slot);
+                }
+            }
+            return store;
+        }
+    }
 
-                            reset();
+    // Adds a player that is not in the store yet and returns its slot.
+    // Only registerPlayer and load add players, so every player has a
+    // token.
+    private int addPlayer(long playerId)
+    {
+        if (size == ids.length)
+        {
+            grow();
+        }
+        int slot = size++;
+        ids[slot] = playerId;
+        tokens[slot] = 0;
+        nextPlayerId = Math.max(nextPlayerId, playerId + 1);
+        ratings[slot] = INITIAL_RATING;
+        wins[slot] = 0;
+        losses[slot] = 0;
+        draws[slot] = 0;
+        insertIndex(playerId, slot);
+        return slot;
+    }
 
-                        } else
-                        {
+    private int find(long playerId)
+    {
+        int mask = indexKeys.length - 1;
+        for (int i = hash(playerId) & mask; indexKeys[i] != EMPTY_KEY; i = (i + 1) & mask)
+        {
+            if (indexKeys[i] == playerId)
+            {
+                return indexSlots[i];
+            }
+        }
+        return -1;
+    }
 
-                            
-                            netComm.writer.println("exit");
-                            Platform.exit();
-                        }
-                        break;
-                    case "query":
-                        MessageBox consent = new MessageBox("Tic Tac Toe",
-                                "Do you want to play again?");
-                        consent.showAndWait();
+    private void insertIndex(long playerId, int slot)
+    {
+        int mask = indexKeys.length - 1;
+        int i = hash(playerId) & mask;
+        while (indexKeys[i] != EMPTY_KEY)
+        {
+            i = (i + 1) & mask;
+        }
+        indexKeys[i] = playerId;
+        indexSlots[i] = slot;
+    }
 
-                        if (consent.returnValue == 1)
-                        {
+    private void grow()
+    {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        tokens = Arrays.copyOf(tokens, capacity);
+        ratings = Arrays.copyOf(ratings, capacity);
+        wins = Arrays.copyOf(wins, capacity);
+        losses = Arrays.copyOf(losses, capacity);
+        draws = Arrays.copyOf(draws, capacity);
+        nextWithRating = Arrays.copyOf(nextWithRating, capacity);
+        previousWithRating = Arrays.copyOf(previousWithRating, capacity);
 
-                            netComm.writer.println("playagain consent");
-                            reset();
-                        } else
-                        {
+        // Keep the index at most half full.
+        if (capacity * 2 > indexKeys.length)
+        {
+            indexKeys = new long[indexKeys.length * 2];
+            Arrays.fill(indexKeys, EMPTY_KEY);
+            indexSlots = new int[indexKeys.length];
+            for (int slot = 0; slot < size; slot++)
+            {
+                insertIndex(ids[slot], slot);
+            }
+        }
+    }
 
-                            netComm.writer.println("exit");
-                           
-                            Platform.exit();
-                        }
-                        break;
-                    case "deny":
-                        
-                        Platform.exit();
-                        break;
-                    case "exit":
-                            InformationBox exit = new InformationBox("tic tac "
-                                    + "toe", "opponent has exited");
-                }
+    private static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
 
+    // Moves the player to a new rating. Has to be called before the game
+    // is counted, so a player's first game puts it into the rating lists.
+    private void setRating(int slot, int rating)
+    {
+        if (hasPlayed(slot))
+        {
+            unlinkRating(slot);
         }
+        ratings[slot] = Math.max(0, Math.min(MAX_RATING - 1, rating));
+        linkRating(slot);
     }
 
-    // Used to process a protocol move row col command.
-    // Must do all appropriate updates of game state
-    // and GUI variables, including status bar.
-    private void processMove(int row, int col)
+    // True once the player has a finished game and so is in the rating
+    // lists and counts.
+    private boolean hasPlayed(int slot)
     {
-        cells[row][col].setText(remotePlayerId.toString());
+        return wins[slot] + losses[slot] + draws[slot] > 0;
+    }
 
-        gameState.cellIsFilled[row][col] = true;
-        gameState.numberOfCellsFilled++;
-        if (hasWon(remotePlayerId.toString()))
+    private void linkRating(int slot)
+    {
+        int rating = ratings[slot];
+        int first = firstWithRating[rating];
+        nextWithRating[slot] = first;
+        previousWithRating[slot] = -1;
+        if (first >= 0)
         {
-            statusBar.setText("You Lose");
-            playAgainMenuItem.setDisable(false);
-            gameState.gameOver = true;
+            previousWithRating[first] = slot;
+        }
+        firstWithRating[rating] = slot;
+        addToCounts(rating, 1);
+    }
 
-        } else if (gameState.numberOfCellsFilled == 9)
+    private void unlinkRating(int slot)
+    {
+        int rating = ratings[slot];
+        int next = nextWithRating[slot];
+        int previous = previousWithRating[slot];
+        if (previous >= 0)
         {
-            statusBar.setText("catsgame");
-            gameState.gameOver = true;
+            nextWithRating[previous] = next;
         } else
         {
+            firstWithRating[rating] = next;
+        }
+        if (next >= 0)
+        {
+            previousWithRating[next] = previous;
+        }
+        addToCounts(rating, -1);
+    }
+
+    // Fenwick tree over ratings, stored 1-based in ratingCounts.
+    private void addToCounts(int rating, int delta)
+    {
+        for (int i = rating + 1; i <= MAX_RATING; i += i & -i)
+        {
+            ratingCounts[i] += delta;
+        }
+    }
 
-            gameState.localPlayerTurn = true;
+    private int countAtOrBelow(int rating)
+    {
+        int count = 0;
+        for (int i = rating + 1; i > 0; i -= i & -i)
+        {
+            count += ratingCounts[i];
         }
+        return count;
     }
 }
 
-// This code is given as an example.
-class ServerSelectHandler implements EventHandler<ActionEvent>, GameSharedVariables
+// Bounded map from a position hash to a long value, shared by any number
+// of threads. Sized by a memory budget instead of an entry count.
+//
+// The cache is set associative: a hash picks a set of WAYS entries, and
+// when the set is full one entry is evicted with the CLOCK algorithm,
+// which skips entries that were read since the hand last passed them.
+// Sets are grouped into segments with one lock each, so threads only
+// contend when they touch the same segment.
+class PositionCache
 {
 
-    @Override
-    public void handle(ActionEvent event)
-    {
-        // This is the server.
-        // server is "X" and client is "O".
-        localPlayerId.append("X");
-        remotePlayerId.append("O");
-        statusBar.setText("Server role selected");
-        gameState.localPlayerTurn = true; // Server goes first the first time
-        gameState.numberOfCellsFilled = 0;
-        gameState.localPlayerGoesFirst = true;
-        
-        try
-        {
+    public static final long NOT_FOUND = Long.MIN_VALUE;
 
-            // Set up server socket
-            ServerSocket serverSock = new ServerSocket(50000);
+    // Bytes used by one entry: key, value and flags.
+    public static final int BYTES_PER_ENTRY = 8 + 8 + 1;
 
-            System.err.println("Created the server socket.");
-            statusBar.setText("Please wait for a client to connect.");
+    private static final int WAYS = 8;
+    private static final int SEGMENTS = 64;
+    private static final byte OCCUPIED = 1;
+    private static final byte REFERENCED = 2;
 
-            Socket sock = serverSock.accept();
-            netComm.sock = sock;
-            statusBar.setText("Client has connected. Make a move.");
-            netComm.reader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            netComm.writer = new PrintWriter(sock.getOutputStream(), true);
+    private final long[] keys;
+    private final long[] values;
+    private final byte[] flags;
+    // Clock hand of every set, as an offset into the set.
+    private final byte[] hands;
+    private final int setMask;
+    private final Object[] locks = new Object[SEGMENTS];
 
-            // Set up a thread to monitor the incoming connection
-            new Thread(new RemoteInputHandler()).start();
-        } catch (IOException ex)
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PositionCache(long memoryBudgetBytes)
+    {
+        long maxSets = Math.max(1, memoryBudgetBytes / (BYTES_PER_ENTRY * WAYS + 1));
+        int sets = Integer.highestOneBit((int) Math.min(maxSets, 1 << 26));
+        setMask = sets - 1;
+        keys = new long[sets * WAYS];
+        values = new long[sets * WAYS];
+        flags = new byte[sets * WAYS];
+        hands = new byte[sets];
+        for (int i = 0; i < SEGMENTS; i++)
         {
-            throw new RuntimeException(ex);
+            locks[i] = new Object();
         }
-        gameMenu.setDisable(false);
-        playAgainMenuItem.setDisable(true);
     }
-}
-
-// This handles the client connection. 
-class ClientSelectHandler implements EventHandler<ActionEvent>, GameSharedVariables
-{
 
-    @Override
-    public void handle(ActionEvent event)
+    // Returns the value stored for the hash, or NOT_FOUND.
+    public long get(long hash)
     {
-        // This is the server.
-        // server is "X" and client is "O".
-        localPlayerId.append("O");
-        remotePlayerId.append("X");
-        statusBar.setText("Client Role is selected");
-        gameState.localPlayerTurn = false; // Server goes first the first time
-        gameState.numberOfCellsFilled = 0;
-        gameState.localPlayerGoesFirst = false;
+        int set = setOf(hash);
+        int first = set * WAYS;
+        synchronized (locks[set & (SEGMENTS - 1)])
+        {
+            for (int i = first; i < first + WAYS; i++)
+            {
+                if ((flags[i] & OCCUPIED) != 0 && keys[i] == hash)
+                {
+                    flags[i] |= REFERENCED;
+                    hits.increment();
+                    return values[i];
+                }
+            }
+        }
+        misses.increment();
+        return NOT_FOUND;
+    }
 
-        try
+    public void put(long hash, long value)
+    {
+        int set = setOf(hash);
+        int first = set * WAYS;
+        synchronized (locks[set & (SEGMENTS - 1)])
         {
-            MyInputPane clientConnect = new MyInputPane("Server Connect",
-                    "Please enter the IP adress");
-            String ip = clientConnect.showDialog();
-            // Set up server socket
-            statusBar.setText("please wait while you are connected");
-            Socket sock = new Socket(ip, 50000);
-            netComm.sock = sock;
-            System.err.println("Connect to server");
-            statusBar.setText("please wait for the other player to move");
+            int free = -1;
+            for (int i = first; i < first + WAYS; i++)
+            {
+                if ((flags[i] & OCCUPIED) == 0)
+                {
+                    if (free < 0)
+                    {
+                        free = i;
+                    }
+                } else if (keys[i] == hash)
+                {
+                    values[i] = value;
+                    return;
+                }
+            }
 
-            netComm.reader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            netComm.writer = new PrintWriter(sock.getOutputStream(), true);
+            if (free < 0)
+            {
+                free = evict(set);
+            }
+            keys[free] = hash;
+            values[free] = value;
+            flags[free] = OCCUPIED;
+        }
+    }
 
-            // Set up a thread to monitor the incoming connection
-            new Thread(new RemoteInputHandler()).start();
-        } catch (IOException ex)
+    // Moves the set's clock hand past referenced entries, clearing their
+    // bit, and returns the first unreferenced one.
+    private int evict(int set)
+    {
+        int first = set * WAYS;
+        int hand = hands[set];
+        while ((flags[first + hand] & REFERENCED) != 0)
         {
-            throw new RuntimeException(ex);
+            flags[first + hand] &= ~REFERENCED;
+            hand = (hand + 1) % WAYS;
         }
-        gameMenu.setDisable(false);
-        playAgainMenuItem.setDisable(true);
+        hands[set] = (byte) ((hand + 1) % WAYS);
+        evictions.increment();
+        return first + hand;
+    }
+
+    private int setOf(long hash)
+    {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & setMask;
+    }
+
+    public int getCapacity()
+    {
+        return keys.length;
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    public double getHitRate()
+    {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("PositionCache[capacity=%d, hits=%d, misses=%d, "
+                + "hitRate=%.3f, evictions=%d]", getCapacity(), getHits(),
+                getMisses(), getHitRate(), getEvictions());
     }
 }
 
@@ -627,6 +4209,12 @@ class SendMessageButtonHandler implements EventHandler<ActionEvent>, GameSharedV
     public void handle(ActionEvent event)
     {
         String message = sendMessageTF.getText();
+        if (message.length() > ChatRateLimiter.MAX_MESSAGE_LENGTH)
+        {
+            statusBar.setText("Message is too long, the limit is "
+                    + ChatRateLimiter.MAX_MESSAGE_LENGTH + " characters.");
+            return;
+        }
         sendMessageTF.clear();
         chatHistoryTArea.appendText("Me"+ "> " + message + "\n");
         netComm.writer.println("chat " + message);